@@ -0,0 +1,96 @@
+package com.practitest.api;
+
+import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
+import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.StringPart;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and writing the multipart body of a result upload, as <code>uploadResult</code> does,
+ * into a stream that discards it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class MultipartBenchmark {
+  @Param({"NONE", "GZIP", "ZIP"})
+  public Client.ResultCompression compression;
+
+  @Param({"10"})
+  public int files;
+
+  @Param({"1048576"})
+  public int fileBytes;
+
+  private Client client;
+  private File directory;
+  private final List<File> resultFiles = new ArrayList<File>();
+
+  @Setup
+  public void setUp() throws IOException {
+    client = new Client("http://localhost", "token", "client", "", "", "", "", "bench");
+    directory = File.createTempFile("xbot-bench", "");
+    directory.delete();
+    directory.mkdirs();
+    Random random = new Random(1);
+    byte[] line = new byte[100];
+    for (int i = 0; i < files; ++i) {
+      File file = new File(directory, "result-" + i + ".log");
+      OutputStream out = new FileOutputStream(file);
+      try {
+        // log-like content: compressible but not trivially
+        for (int written = 0; written < fileBytes; written += line.length) {
+          for (int j = 0; j < line.length - 1; ++j) line[j] = (byte)('a' + random.nextInt(8));
+          line[line.length - 1] = '\n';
+          out.write(line);
+        }
+      } finally {
+        out.close();
+      }
+      resultFiles.add(file);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    for (File file : resultFiles) file.delete();
+    directory.delete();
+  }
+
+  @Benchmark
+  public long writeRequest() throws IOException {
+    List<Part> parts = new LinkedList<Part>();
+    parts.add(new StringPart("exit_code", "0", "UTF-8"));
+    client.addFileParts(parts, "", resultFiles, compression);
+    MultipartRequestEntity entity = new MultipartRequestEntity(parts.toArray(new Part[parts.size()]),
+                                                               new HttpMethodParams());
+    CountingOutputStream out = new CountingOutputStream();
+    entity.writeRequest(out);
+    return out.count;
+  }
+
+  private static class CountingOutputStream extends OutputStream {
+    private long count = 0;
+
+    @Override
+    public void write(int b) {
+      ++count;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+      count += length;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.practitest.api;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the <code>next_test</code> responses, a single task and a leased batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class TaskDocumentBenchmark {
+  @Param({"1", "50"})
+  public int tasks;
+
+  private Client client;
+  private byte[] document;
+
+  @Setup
+  public void setUp() throws IOException {
+    client = new Client("http://localhost", "token", "client", "", "", "", "", "bench");
+    StringBuilder json = new StringBuilder();
+    if (tasks > 1) json.append('[');
+    for (int i = 0; i < tasks; ++i) {
+      if (i > 0) json.append(',');
+      json.append("{\"instance\":{\"id\":\"").append(100000 + i).append("\",\"timeout_in_seconds\":3600,")
+          .append("\"name\":\"Login flow\",\"status\":\"NO RUN\",\"custom_fields\":{\"browser\":\"chrome\",\"os\":\"linux\"}},")
+          .append("\"test\":{\"id\":\"").append(2000 + i).append("\",\"name\":\"Login with SSO\",")
+          .append("\"path_to_application\":\"/opt/tests/run_suite.sh --suite login --env staging\",")
+          .append("\"path_to_results\":\"/opt/tests/results/login\",\"num_of_files_to_upload\":10,")
+          .append("\"results_include\":\"**/*.xml\",\"results_exclude\":null,")
+          .append("\"description\":\"Checks the login flow against the staging identity provider\"},")
+          .append("\"testSet\":{\"id\":\"77\",\"name\":\"Nightly regression\"}}");
+    }
+    if (tasks > 1) json.append(']');
+    document = json.toString().getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public List<Client.Task> parse() throws IOException {
+    return client.parseTaskDocuments(new ByteArrayInputStream(document));
+  }
+}
@@ -0,0 +1,69 @@
+package com.practitest.xbot;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The runner log behind <code>addTestRunnerLog</code>: execution slots adding events while
+ * <code>/log</code> renders the ring.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Group)
+public class EventLogBenchmark {
+  private EventLog eventLog;
+  private String output;
+
+  @Setup
+  public void setUp() {
+    eventLog = new EventLog(128, 1024 * 1024);
+    StringBuilder text = new StringBuilder();
+    while (text.length() < 16 * 1024) text.append("[INFO] Running com.example.LoginTest ... ok\n");
+    output = text.toString();
+    for (int i = 0; i < 128; ++i) eventLog.add(EventLog.Level.INFO, "Slot #1", "Running test " + i);
+  }
+
+  @Benchmark
+  @Group("slotsAndReader")
+  @GroupThreads(3)
+  public void add() {
+    eventLog.add(EventLog.Level.INFO, "Slot #1", "Task [Login flow] output", output);
+  }
+
+  @Benchmark
+  @Group("slotsAndReader")
+  @GroupThreads(1)
+  public void render() {
+    PrintWriter out = new PrintWriter(new NullWriter());
+    eventLog.render(out);
+    out.flush();
+  }
+
+  @Benchmark
+  @Group("slotsOnly")
+  @GroupThreads(4)
+  public void addWithoutReader() {
+    eventLog.add(EventLog.Level.INFO, "Slot #1", "There is no test to run in the queue");
+  }
+
+  private static class NullWriter extends Writer {
+    @Override
+    public void write(char[] buffer, int offset, int length) {
+    }
+
+    @Override
+    public void write(String text, int offset, int length) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package com.practitest.xbot;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draining a chatty test's console output, kept in memory only or also spilled to disk.
+ * Throughput is reported per drained stream of <code>outputBytes</code>.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class OutputCaptureBenchmark {
+  @Param({"67108864"})
+  public int outputBytes;
+
+  @Param({"false", "true"})
+  public boolean spill;
+
+  private byte[] output;
+  private File spillFile;
+
+  @Setup
+  public void setUp() throws IOException {
+    output = new byte[outputBytes];
+    byte[] line = "[INFO] Running com.example.LoginTest ... ok (12 ms)\n".getBytes("UTF-8");
+    for (int i = 0; i < output.length; ++i) output[i] = line[i % line.length];
+    spillFile = File.createTempFile("xbot-bench", ".log");
+  }
+
+  @TearDown
+  public void tearDown() {
+    spillFile.delete();
+  }
+
+  @Benchmark
+  public long drain() {
+    OutputCapture capture = new OutputCapture(new ByteArrayInputStream(output), 64 * 1024, 64 * 1024,
+            spill ? spillFile : null);
+    capture.run();
+    return capture.getTotalBytes();
+  }
+}
@@ -0,0 +1,62 @@
+package com.practitest.xbot;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picking the result files to upload from a large results directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ResultFileCollectorBenchmark {
+  @Param({"1000", "20000"})
+  public int files;
+
+  @Param({"10"})
+  public int maxFiles;
+
+  private File directory;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = File.createTempFile("xbot-bench", "");
+    directory.delete();
+    File reports = new File(directory, "reports");
+    reports.mkdirs();
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < files; ++i) {
+      // half in a subdirectory, so the include glob walks the tree
+      File file = new File(i % 2 == 0 ? directory : reports, "result-" + i + (i % 3 == 0 ? ".xml" : ".log"));
+      file.createNewFile();
+      file.setLastModified(now - i * 1000L);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    delete(directory);
+  }
+
+  @Benchmark
+  public List<File> collectTopLevel() throws IOException {
+    return new ResultFileCollector(directory, maxFiles, null, null).collect();
+  }
+
+  @Benchmark
+  public List<File> collectIncludedTree() throws IOException {
+    return new ResultFileCollector(directory, maxFiles, "**/*.xml", null).collect();
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) delete(child);
+    }
+    file.delete();
+  }
+}
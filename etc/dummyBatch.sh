@@ -0,0 +1,13 @@
+#!/bin/bash
+# batch side of a batched run, see TaskRunner.prepareBatch
+first=1
+while IFS=$'\t' read -r instance results timeout; do
+  printf '%s\t%s\t%s\n' "$instance" "$results" "$timeout" > "$results/manifest.txt"
+  # the last instance reports no exit code
+  if [ -n "$first" ]; then
+    printf '%s\t3\n' "$instance" >> "$XBOT_BATCH_EXIT_CODES"
+    echo "not an exit code" >> "$XBOT_BATCH_EXIT_CODES"
+    first=
+  fi
+done < "$XBOT_BATCH_MANIFEST"
+echo "ran the batch"
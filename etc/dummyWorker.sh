@@ -0,0 +1,12 @@
+#!/bin/bash
+# worker side of the xBot worker protocol, see WorkerPool
+echo "$XBOT_WORKER_MARKER ready"
+while IFS=$'\t' read -r instance results timeout; do
+  # output without a newline at its end shares the line with the marker
+  if [ "$instance" = "partial" ]; then
+    printf 'partial output'
+  else
+    echo "running $instance"
+  fi
+  echo "$XBOT_WORKER_MARKER 7"
+done
@@ -0,0 +1,299 @@
+package com.practitest.api;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * {@link Transport} on java.net.http (Java 11+). Polls, uploads and console streaming share one connection
+ * as HTTP/2 streams when the server supports it, HTTP/1.1 connections otherwise. Request bodies are written
+ * into a pipe by a pool of writer threads, the client reads the pipe asynchronously while sending. The pipe is
+ * closed once the exchange ends, so a writer whose body the client abandoned fails and exits.
+ * <p>
+ * Built from <code>src-java11</code> and loaded by {@link Client#createHttp2Transport}, so the xBot still runs
+ * on Java 8 with the commons-httpclient transport. Server certificates are checked like
+ * {@link Client.EasyX509TrustManager} does, without host name verification. Proxy credentials are sent with
+ * Basic authentication; proxies that only accept NTLM need the commons-httpclient transport. The JRE doesn't
+ * send Basic credentials through HTTPS tunnels unless <code>jdk.http.auth.tunneling.disabledSchemes</code> allows
+ * it, without that the transport isn't created with proxy credentials.
+ */
+public class Http2Transport implements Transport {
+  private static final Logger logger = Logger.getLogger(Http2Transport.class.getName());
+
+  // Basic authentication of CONNECT tunnels is disabled by default since Java 8u111
+  private static final String TUNNELING_DISABLED_SCHEMES = "jdk.http.auth.tunneling.disabledSchemes";
+  private static final int PIPE_SIZE = 64 * 1024;
+  private static final int MAX_BODY_WRITERS = 16;
+
+  private final HttpClient client;
+  private final ThreadPoolExecutor bodyWriters;
+  private final AtomicLong numOfRequests = new AtomicLong();
+  private final AtomicLong numOfHttp2Responses = new AtomicLong();
+
+  public Http2Transport(String proxyHost, String proxyPort, String proxyUser, String proxyPassword,
+                        int connectionTimeoutMillis) throws GeneralSecurityException {
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(null, new TrustManager[]{new EasyTrustManager(new Client.EasyX509TrustManager(null))}, null);
+    HttpClient.Builder builder = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .connectTimeout(Duration.ofMillis(connectionTimeoutMillis))
+            .sslContext(sslContext);
+    if (!proxyHost.isEmpty())
+      builder.proxy(ProxySelector.of(new InetSocketAddress(proxyHost, Integer.parseInt(proxyPort))));
+    if (!proxyUser.isEmpty()) {
+      String disabledSchemes = System.getProperty(TUNNELING_DISABLED_SCHEMES);
+      if (disabledSchemes == null || disabledSchemes.toLowerCase().contains("basic"))
+        throw new IllegalStateException("Basic proxy authentication of HTTPS tunnels is disabled, start the xBot with -D" +
+                TUNNELING_DISABLED_SCHEMES + "= to use proxy credentials with the HTTP/2 transport");
+      final PasswordAuthentication credentials = new PasswordAuthentication(proxyUser, proxyPassword.toCharArray());
+      builder.authenticator(new Authenticator() {
+        @Override
+        protected PasswordAuthentication getPasswordAuthentication() {
+          return getRequestorType() == RequestorType.PROXY ? credentials : null;
+        }
+      });
+    }
+    client = builder.build();
+    bodyWriters = new ThreadPoolExecutor(MAX_BODY_WRITERS, MAX_BODY_WRITERS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "HTTP/2 request body writer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    bodyWriters.allowCoreThreadTimeOut(true);
+    logger.info("Using the HTTP/2 transport");
+  }
+
+  public Response execute(Request request) throws IOException {
+    HttpRequest.Builder builder = HttpRequest.newBuilder(toURI(request.getUrl()));
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+      builder.header(header.getKey(), header.getValue());
+    List<BodyPipe> pipes = new CopyOnWriteArrayList<BodyPipe>();
+    if (request.getMethod().equals("POST")) {
+      RequestEntity entity = request.getEntity();
+      if (entity == null) {
+        builder.POST(HttpRequest.BodyPublishers.noBody());
+      } else {
+        if (entity.getContentType() != null) builder.header("Content-Type", entity.getContentType());
+        builder.POST(publisher(entity, pipes));
+      }
+    } else
+      builder.GET();
+    numOfRequests.incrementAndGet();
+    try {
+      HttpResponse<InputStream> response = client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream());
+      if (response.version() == HttpClient.Version.HTTP_2) numOfHttp2Responses.incrementAndGet();
+      return new Http2Response(response);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for " + request.getUrl());
+    } finally {
+      // a body the client didn't read to the end (timeout, early response) fails its writer
+      for (BodyPipe pipe : pipes) {
+        try {
+          pipe.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+  }
+
+  public String describe() {
+    return "HTTP/2 transport, requests: " + numOfRequests.get() + " (" + numOfHttp2Responses.get() + " over HTTP/2)";
+  }
+
+  /**
+   * The entity is written to a new pipe every time the client (re)sends the body.
+   *
+   * @param pipes receives the pipes, to be closed when the exchange ends.
+   */
+  private HttpRequest.BodyPublisher publisher(final RequestEntity entity, final List<BodyPipe> pipes) {
+    HttpRequest.BodyPublisher publisher = HttpRequest.BodyPublishers.ofInputStream(new Supplier<InputStream>() {
+      public InputStream get() {
+        final BodyPipe in = new BodyPipe();
+        final PipedOutputStream out;
+        try {
+          out = new PipedOutputStream(in);
+        } catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+        pipes.add(in);
+        bodyWriters.execute(new Runnable() {
+          public void run() {
+            try {
+              entity.writeRequest(out);
+            } catch (IOException e) {
+              in.failure = e;
+            } finally {
+              try {
+                out.close();
+              } catch (IOException ignored) {
+              }
+            }
+          }
+        });
+        return in;
+      }
+    });
+    long length = entity.getContentLength();
+    return length >= 0 ? HttpRequest.BodyPublishers.fromPublisher(publisher, length) : publisher;
+  }
+
+  /**
+   * Fails at the end of the body when writing it failed, so a cut body isn't sent as a complete one.
+   */
+  private static class BodyPipe extends PipedInputStream {
+    private volatile IOException failure;
+
+    private BodyPipe() {
+      super(PIPE_SIZE);
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+      int b = super.read();
+      if (b == -1 && failure != null) throw failure;
+      return b;
+    }
+
+    @Override
+    public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read == -1 && failure != null) throw failure;
+      return read;
+    }
+  }
+
+  /**
+   * URLs are built for commons-httpclient, which accepts characters like <code>[]</code> in the query.
+   */
+  private static URI toURI(String url) {
+    StringBuilder escaped = new StringBuilder(url.length() + 16);
+    for (byte b : url.getBytes(StandardCharsets.UTF_8)) {
+      int c = b & 0xff;
+      if (c > 0x20 && c < 0x7f && "[]{}|\\^`\"<> ".indexOf(c) == -1)
+        escaped.append((char)c);
+      else
+        escaped.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+               .append(Character.toUpperCase(Character.forDigit(c & 0xf, 16)));
+    }
+    return URI.create(escaped.toString());
+  }
+
+  private static class Http2Response implements Response {
+    private final HttpResponse<InputStream> response;
+
+    private Http2Response(HttpResponse<InputStream> response) {
+      this.response = response;
+    }
+
+    public int getStatusCode() {
+      return response.statusCode();
+    }
+
+    public String getStatusLine() {
+      return (response.version() == HttpClient.Version.HTTP_2 ? "HTTP/2 " : "HTTP/1.1 ") + response.statusCode();
+    }
+
+    public String getHeader(String name) {
+      return response.headers().firstValue(name).orElse(null);
+    }
+
+    public InputStream getBody() {
+      return response.body();
+    }
+
+    public String getBodyAsString() throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      InputStream in = response.body();
+      while ((read = in.read(buffer)) != -1) body.write(buffer, 0, read);
+      return body.toString("UTF-8");
+    }
+
+    public void release() {
+      try {
+        response.body().close();
+      } catch (IOException e) {
+        logger.fine("Failed to close response body: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * An extended trust manager, so the JRE doesn't add its host name check to the easy one.
+   */
+  private static class EasyTrustManager extends X509ExtendedTrustManager {
+    private final X509TrustManager trustManager;
+
+    private EasyTrustManager(X509TrustManager trustManager) {
+      this.trustManager = trustManager;
+    }
+
+    public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+      trustManager.checkClientTrusted(chain, authType);
+    }
+
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+      trustManager.checkServerTrusted(chain, authType);
+    }
+
+    public X509Certificate[] getAcceptedIssuers() {
+      return trustManager.getAcceptedIssuers();
+    }
+
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+      checkClientTrusted(chain, authType);
+    }
+
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+      checkServerTrusted(chain, authType);
+    }
+
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+      checkClientTrusted(chain, authType);
+    }
+
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+      checkServerTrusted(chain, authType);
+    }
+  }
+}
@@ -1,19 +1,22 @@
 package com.practitest.api;
 
 import org.apache.commons.httpclient.*;
-import org.apache.commons.httpclient.auth.AuthScope;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
+import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
 import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.PartBase;
+import org.apache.commons.httpclient.methods.multipart.StringPart;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.JsonNode;
 import org.apache.commons.httpclient.params.HttpConnectionParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.commons.httpclient.protocol.Protocol;
 import org.apache.commons.httpclient.protocol.SecureProtocolSocketFactory;
+import org.apache.commons.httpclient.util.EncodingUtil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -22,11 +25,21 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.math.BigInteger;
 import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.MessageDigest;
@@ -35,11 +48,23 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * @author stask.
@@ -48,8 +73,12 @@ public class Client {
   private static final Logger logger = Logger.getLogger(Client.class.getName());
 
   private static final int DEFAULT_CONNECTION_TIMEOUT = 5000;
+  private static final int CHUNK_RETRIES = 3;
 
   private static final JsonFactory jsonFactory = new JsonFactory();
+  // thread-safe once configured, shared by all the requests
+  private static final ObjectMapper objectMapper = new ObjectMapper(jsonFactory);
+  private static final TaskDecoder taskDecoder = new TaskDecoder(jsonFactory);
 
   private String serverURL;
   private String apiToken;
@@ -60,7 +89,37 @@ public class Client {
   private String proxyPassword;
   private String version;
 
-  private HttpClient httpClient;
+  private ConnectionPool connectionPool;
+  private Transport transport;
+  private volatile boolean batchLeaseSupported = true;
+  private volatile boolean batchUploadSupported = true;
+  private volatile boolean outputStreamingSupported = true;
+
+  private volatile ResultCompression resultCompression = ResultCompression.NONE;
+  private final AtomicLong rawResultBytes = new AtomicLong();
+  private final AtomicLong compressedResultBytes = new AtomicLong();
+
+  private volatile boolean chunkedUploadSupported = true;
+  private volatile long chunkedUploadThreshold = 0;
+  private volatile int uploadChunkSize = 8 * 1024 * 1024;
+  private volatile UploadOffsets uploadOffsets = new UploadOffsets(null);
+
+  private volatile boolean deduplicationSupported = true;
+  private volatile ResultDigests resultDigests;
+  private final AtomicLong deduplicatedResultBytes = new AtomicLong();
+
+  private volatile boolean gzipRequests = false;
+  private volatile boolean gzipRequestsSupported = true;
+  private volatile AtomicLong uncompressedTransferBytes = new AtomicLong();
+  private volatile AtomicLong compressedTransferBytes = new AtomicLong();
+
+  /**
+   * How result files are sent: as they are, each file gzip'ed, or all files in one zip bundle.
+   * Compressed files are streamed from disk straight into the (chunked) request body.
+   */
+  public enum ResultCompression {
+    NONE, GZIP, ZIP
+  }
 
   public Client(String serverURL, String apiToken, String clientId,
                 String proxyHost, String proxyPort, String proxyUser, String proxyPassword, String version) {
@@ -77,86 +136,640 @@ public class Client {
     this.version = version;
   }
 
+  /**
+   * @param connectionPool used by the default transport, created for the same server and proxy,
+   *                       see {@link ConnectionPool#isFor}.
+   */
+  public synchronized void setConnectionPool(ConnectionPool connectionPool) {
+    this.connectionPool = connectionPool;
+  }
+
+  /**
+   * @param transport created for the proxy settings of this client.
+   */
+  public synchronized void setTransport(Transport transport) {
+    this.transport = transport;
+  }
+
+  /**
+   * Creates the java.net.http transport, which multiplexes the requests over HTTP/2 when the server supports it.
+   *
+   * @return null when the JRE is older than Java 11 or the transport wasn't built.
+   */
+  public static Transport createHttp2Transport(String proxyHost, String proxyPort, String proxyUser, String proxyPassword) {
+    try {
+      Class<?> transportClass = Class.forName("com.practitest.api.Http2Transport");
+      return (Transport)transportClass.getConstructor(String.class, String.class, String.class, String.class, int.class).
+        newInstance(proxyHost, proxyPort, proxyUser, proxyPassword, DEFAULT_CONNECTION_TIMEOUT);
+    } catch (ClassNotFoundException e) {
+      logger.warning("The HTTP/2 transport wasn't built with this xBot");
+    } catch (UnsupportedClassVersionError e) {
+      logger.warning("The HTTP/2 transport needs Java 11, this is Java " + System.getProperty("java.version"));
+    } catch (InvocationTargetException e) {
+      logger.warning("Failed to create the HTTP/2 transport: " + e.getCause().getMessage());
+    } catch (Exception e) {
+      logger.warning("Failed to create the HTTP/2 transport: " + e);
+    }
+    return null;
+  }
+
+  public void setResultCompression(ResultCompression resultCompression) {
+    this.resultCompression = resultCompression;
+  }
+
+  /**
+   * Result files of at least <code>thresholdBytes</code> are uploaded separately in <code>chunkBytes</code> ranges
+   * before their result, see {@link #uploadResultFile(String, File)}.
+   *
+   * @param thresholdBytes 0 uploads all files with their result.
+   * @param offsetsFile    where confirmed offsets are kept, so uploads resume after a restart.
+   */
+  public void setChunkedUpload(long thresholdBytes, int chunkBytes, File offsetsFile) {
+    this.chunkedUploadThreshold = thresholdBytes;
+    this.uploadChunkSize = chunkBytes;
+    this.uploadOffsets = new UploadOffsets(offsetsFile);
+  }
+
+  /**
+   * Result files are sent only when the server doesn't have their content yet,
+   * see {@link #findMissingDigests(Collection)}.
+   *
+   * @param cacheEntries number of file digests kept, 0 sends all files.
+   */
+  public void setResultDeduplication(int cacheEntries) {
+    this.resultDigests = cacheEntries > 0 ? new ResultDigests(cacheEntries) : null;
+  }
+
+  /**
+   * Console output and other request bodies that aren't result files are sent gzip'ed
+   * (<code>Content-Encoding: gzip</code>) when that makes them smaller.
+   * Turned off by itself when the server answers 415 Unsupported Media Type.
+   */
+  public void setGzipRequests(boolean gzipRequests) {
+    this.gzipRequests = gzipRequests;
+  }
+
+  /**
+   * Counts the gzip'ed transfers into totals that outlive this client, e.g. when it's recreated for new settings.
+   */
+  public void setTransferCounters(AtomicLong uncompressedBytes, AtomicLong compressedBytes) {
+    this.uncompressedTransferBytes = uncompressedBytes;
+    this.compressedTransferBytes = compressedBytes;
+  }
+
+  /**
+   * @return size of the gzip'ed responses and request bodies so far, uncompressed.
+   */
+  public long getUncompressedTransferBytes() {
+    return uncompressedTransferBytes.get();
+  }
+
+  /**
+   * @return size of the gzip'ed responses and request bodies so far, as transferred.
+   */
+  public long getCompressedTransferBytes() {
+    return compressedTransferBytes.get();
+  }
+
+  /**
+   * @return size of the result files the server already had, so they weren't sent.
+   */
+  public long getDeduplicatedResultBytes() {
+    return deduplicatedResultBytes.get();
+  }
+
+  /**
+   * @return size of the result files sent compressed so far, before compression.
+   */
+  public long getRawResultBytes() {
+    return rawResultBytes.get();
+  }
+
+  /**
+   * @return size of the result files sent compressed so far, after compression.
+   */
+  public long getCompressedResultBytes() {
+    return compressedResultBytes.get();
+  }
+
   public Task nextTask() throws Exception {
     String url = constructURL("next_test").toString();
-    GetMethod getMethod = new GetMethod(url);
-    setAuthenticationParameters(getMethod);
+    Transport.Request request = Transport.Request.get(url);
+    setAuthenticationParameters(request);
+    request.setHeader("Accept-Encoding", "gzip");
+    Transport.Response response = getTransport().execute(request);
     try {
-      int httpResult = getHTTPClient().executeMethod(getMethod);
+      int httpResult = response.getStatusCode();
       if (httpResult == HttpStatus.SC_OK) {
-        return parseTaskDocument(getMethod.getResponseBodyAsStream());
-      } else if (httpResult == HttpStatus.SC_INTERNAL_SERVER_ERROR)
-        generateApiException(getMethod);
+        return parseTaskDocument(getResponseBody(response));
+      } else if (httpResult >= HttpStatus.SC_INTERNAL_SERVER_ERROR)
+        // 5xx are failures (not an empty queue), so the poller backs off
+        generateApiException(response);
       else
-        logger.severe("Remote call failed: " + getMethod.getStatusLine().toString());
+        logger.severe("Remote call failed: " + response.getStatusLine());
     } finally {
-      getMethod.releaseConnection();
+      response.release();
     }
     return null;
   }
 
+  /**
+   * Leases up to <code>max</code> tasks with one request.
+   * Falls back to {@link #nextTask()} when the server doesn't support batch leases.
+   *
+   * @return leased tasks, empty when the queue is empty.
+   */
+  public List<Task> nextTasks(int max) throws Exception {
+    if (max <= 1 || !batchLeaseSupported)
+      return singleTask(nextTask());
+    StringBuilder urlBuilder = constructURL("next_tests");
+    urlBuilder.append("&max=").append(max);
+    Transport.Request request = Transport.Request.get(urlBuilder.toString());
+    setAuthenticationParameters(request);
+    request.setHeader("Accept-Encoding", "gzip");
+    Transport.Response response = getTransport().execute(request);
+    try {
+      int httpResult = response.getStatusCode();
+      if (httpResult == HttpStatus.SC_OK) {
+        return parseTaskDocuments(getResponseBody(response));
+      } else if (httpResult == HttpStatus.SC_NOT_FOUND || httpResult == HttpStatus.SC_NOT_IMPLEMENTED) {
+        logger.warning("Server doesn't support batch leases (" + response.getStatusLine() + "), leasing one task at a time");
+        batchLeaseSupported = false;
+      } else if (httpResult >= HttpStatus.SC_INTERNAL_SERVER_ERROR)
+        generateApiException(response);
+      else {
+        logger.severe("Remote call failed: " + response.getStatusLine());
+        return new ArrayList<Task>();
+      }
+    } finally {
+      response.release();
+    }
+    return singleTask(nextTask());
+  }
+
+  private static List<Task> singleTask(Task task) {
+    List<Task> tasks = new ArrayList<Task>();
+    if (task != null) tasks.add(task);
+    return tasks;
+  }
+
+  /**
+   * @return the URL the result was uploaded to.
+   * @throws Exception when the server didn't answer 200, the result has to be uploaded again.
+   */
   public String uploadResult(TaskResult result) throws Exception {
     StringBuilder urlBuilder = constructURL("upload_test_result");
     urlBuilder.append("&instance_id=").append(result.getInstanceId());
     urlBuilder.append("&exit_code=").append(result.getExitCode());
     urlBuilder.append("&result=").append(URLEncoder.encode(result.getOutput(), "UTF-8"));
-    PostMethod postMethod = new PostMethod(urlBuilder.toString());
-    setAuthenticationParameters(postMethod);
-    if (result.getFiles() != null && !result.getFiles().isEmpty()) {
+    if (result.getStreamedOutputBytes() >= 0) // closes the console stream
+      urlBuilder.append("&output_streamed=true&output_size=").append(result.getStreamedOutputBytes());
+    ResultCompression compression = resultCompression;
+    if (compression != ResultCompression.NONE)
+      urlBuilder.append("&result_files_encoding=").append(compression.name().toLowerCase());
+    List<File> files = new ArrayList<File>();
+    for (File file : uploadLargeFiles(result, files))
+      urlBuilder.append("&chunked_files[]=").append(URLEncoder.encode(file.getName(), "UTF-8"));
+    Map<File, String> digests = digestFiles(files);
+    Set<String> missing = findMissingDigests(digests.values());
+    Transport.Request request = Transport.Request.post(urlBuilder.toString());
+    setAuthenticationParameters(request);
+    if (!files.isEmpty()) {
       List<Part> parts = new LinkedList<Part>();
-      for (File file : result.getFiles())
-        parts.add(new FilePart("result_files[" + file.getName() + "]", file));
-      postMethod.setRequestEntity(new MultipartRequestEntity(
+      addFileParts(parts, "", files, digests, missing, compression);
+      request.setEntity(new MultipartRequestEntity(
                                                              parts.toArray(new Part[parts.size()]),
-                                                             postMethod.getParams()
+                                                             new HttpMethodParams()
                                                              ));
     }
+    Transport.Response response = getTransport().execute(request);
     try {
-      int httpResult = getHTTPClient().executeMethod(postMethod);
-      if (httpResult == HttpStatus.SC_INTERNAL_SERVER_ERROR)
-        generateApiException(postMethod);
-      else if (httpResult != HttpStatus.SC_OK) {
-        logger.severe("Remote call failed: " + postMethod.getStatusLine().toString());
-      }
+      // any other status (e.g. 401, or 407/429 from a proxy) fails, so a spooled result is kept
+      if (response.getStatusCode() != HttpStatus.SC_OK)
+        generateApiException(response);
+      forgetUploadOffsets(result);
     } finally {
-      postMethod.releaseConnection();
+      response.release();
     }
     return urlBuilder.toString();
   }
 
-  private Task parseTaskDocument(InputStream stream) throws IOException {
-    JsonNode rootNode = (new ObjectMapper(jsonFactory)).readTree(stream);
-    if (rootNode.path("instance").isMissingNode())
-      return null;
-    return new Task(rootNode.path("instance").path("id").asText(),
-                    "Test id:" + rootNode.path("test").path("id").asText() +
-                    "Suite:" + rootNode.path("testSet").path("name").asText(),
-                    rootNode.path("test").path("path_to_application").asText(),
-                    rootNode.path("test").path("path_to_results").asText(),
-                    rootNode.path("test").path("num_of_files_to_upload").asInt(),
-                    rootNode.path("instance").path("timeout_in_seconds").asInt());
-  }
-
-  private void generateApiException(HttpMethodBase mm) throws Exception {
-    throw new Exception("Remote call Failed Error #" + HttpStatus.SC_INTERNAL_SERVER_ERROR + ":" + mm.getResponseBodyAsString());
-  }
-
-  private synchronized HttpClient getHTTPClient() {
-    if (httpClient == null) {
-      Protocol easyHTTPS = new Protocol("https", new EasySSLProtocolSocketFactory(), 443);
-      Protocol.registerProtocol("https", easyHTTPS);
-
-      httpClient = new HttpClient();
-      if (!proxyHost.isEmpty()) {
-        httpClient.getHostConfiguration().setProxy(proxyHost, Integer.parseInt(proxyPort));
+  /**
+   * Appends a chunk of console output of a running instance.
+   *
+   * @param offset position of the chunk in the whole console output.
+   * @return false when the server doesn't support console streaming.
+   */
+  public boolean appendOutput(String instanceId, long offset, byte[] data, int length) throws Exception {
+    if (!outputStreamingSupported) return false;
+    StringBuilder urlBuilder = constructURL("append_test_output");
+    urlBuilder.append("&instance_id=").append(instanceId);
+    urlBuilder.append("&offset=").append(offset);
+    Transport.Request request = Transport.Request.post(urlBuilder.toString());
+    setAuthenticationParameters(request);
+    byte[] chunk = new byte[length];
+    System.arraycopy(data, 0, chunk, 0, length);
+    boolean gzipped = setRequestBody(request, chunk, "application/octet-stream");
+    Transport.Response response = getTransport().execute(request);
+    try {
+      int httpResult = response.getStatusCode();
+      if (httpResult == HttpStatus.SC_OK)
+        return true;
+      if (gzipped && httpResult == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+        gzipRequestsRejected(response);
+      } else if (httpResult == HttpStatus.SC_NOT_FOUND || httpResult == HttpStatus.SC_NOT_IMPLEMENTED) {
+        logger.warning("Server doesn't support console streaming (" + response.getStatusLine() + ")");
+        outputStreamingSupported = false;
+        return false;
+      } else
+        generateApiException(response);
+    } finally {
+      response.release();
+    }
+    return appendOutput(instanceId, offset, data, length);
+  }
+
+  /**
+   * Uploads several results (with their files) in one multipart request.
+   * Falls back to {@link #uploadResult(TaskResult)} per result when the server doesn't support batch uploads.
+   *
+   * @return results the server didn't accept, they can be retried one by one.
+   */
+  public List<TaskResult> uploadResults(List<TaskResult> results) throws Exception {
+    if (results.size() == 1 || !batchUploadSupported)
+      return uploadOneByOne(results);
+    StringBuilder urlBuilder = constructURL("upload_test_results");
+    ResultCompression compression = resultCompression;
+    if (compression != ResultCompression.NONE)
+      urlBuilder.append("&result_files_encoding=").append(compression.name().toLowerCase());
+    Transport.Request request = Transport.Request.post(urlBuilder.toString());
+    setAuthenticationParameters(request);
+    List<TaskResult> sent = new ArrayList<TaskResult>();
+    List<TaskResult> failed = new ArrayList<TaskResult>();
+    List<List<File>> sentFiles = new ArrayList<List<File>>();
+    List<List<File>> sentChunkedFiles = new ArrayList<List<File>>();
+    Map<File, String> digests = new HashMap<File, String>();
+    for (TaskResult result : results) {
+      List<File> files = new ArrayList<File>();
+      try {
+        sentChunkedFiles.add(uploadLargeFiles(result, files));
+        digests.putAll(digestFiles(files));
+      } catch (Exception e) {
+        logger.severe("Failed to upload result files of instance " + result.getInstanceId() + ": " + e.getMessage());
+        failed.add(result);
+        continue;
+      }
+      sent.add(result);
+      sentFiles.add(files);
+    }
+    if (sent.isEmpty())
+      return failed;
+    // one negotiation for the whole batch
+    Set<String> missing = findMissingDigests(digests.values());
+    List<Part> parts = new LinkedList<Part>();
+    for (int i = 0; i < sent.size(); ++i) {
+      TaskResult result = sent.get(i);
+      List<File> files = sentFiles.get(i);
+      String prefix = "results[" + i + "]";
+      parts.add(new StringPart(prefix + "[instance_id]", result.getInstanceId(), "UTF-8"));
+      parts.add(new StringPart(prefix + "[exit_code]", String.valueOf(result.getExitCode()), "UTF-8"));
+      parts.add(new StringPart(prefix + "[result]", result.getOutput(), "UTF-8"));
+      if (result.getStreamedOutputBytes() >= 0)
+        parts.add(new StringPart(prefix + "[output_size]", String.valueOf(result.getStreamedOutputBytes()), "UTF-8"));
+      for (File file : sentChunkedFiles.get(i))
+        parts.add(new StringPart(prefix + "[chunked_files][]", file.getName(), "UTF-8"));
+      if (!files.isEmpty())
+        addFileParts(parts, prefix, files, digests, missing, compression);
+    }
+    request.setEntity(new MultipartRequestEntity(parts.toArray(new Part[parts.size()]), new HttpMethodParams()));
+    Transport.Response response = getTransport().execute(request);
+    try {
+      int httpResult = response.getStatusCode();
+      if (httpResult == HttpStatus.SC_OK) {
+        List<TaskResult> rejected = parseUploadStatuses(response.getBody(), sent);
+        for (TaskResult result : sent) {
+          if (!rejected.contains(result)) forgetUploadOffsets(result);
+        }
+        failed.addAll(rejected);
+        return failed;
+      } else if (httpResult == HttpStatus.SC_NOT_FOUND || httpResult == HttpStatus.SC_NOT_IMPLEMENTED) {
+        logger.warning("Server doesn't support batch uploads (" + response.getStatusLine() + "), uploading one result at a time");
+        batchUploadSupported = false;
+      } else if (httpResult >= HttpStatus.SC_INTERNAL_SERVER_ERROR)
+        generateApiException(response);
+      else {
+        logger.severe("Remote call failed: " + response.getStatusLine());
+        failed.addAll(sent);
+        return failed;
+      }
+    } finally {
+      response.release();
+    }
+    failed.addAll(uploadOneByOne(sent));
+    return failed;
+  }
+
+  /**
+   * Uploads the result files over the chunked upload threshold with {@link #uploadResultFile(String, File)},
+   * files it already uploaded completely are only referenced.
+   *
+   * @param files receives the files that should be sent with the result.
+   * @return the uploaded files.
+   */
+  private List<File> uploadLargeFiles(TaskResult result, List<File> files) throws Exception {
+    List<File> uploaded = new ArrayList<File>();
+    if (result.getFiles() == null) return uploaded;
+    for (File file : result.getFiles()) {
+      if (isChunkedUpload(result.getInstanceId(), file) && uploadResultFile(result.getInstanceId(), file))
+        uploaded.add(file);
+      else
+        files.add(file);
+    }
+    return uploaded;
+  }
+
+  /**
+   * @return whether the file is uploaded on its own with {@link #uploadResultFile(String, File)}, or already was,
+   *         rather than with its result.
+   */
+  public boolean isChunkedUpload(String instanceId, File file) {
+    if (!chunkedUploadSupported) return false;
+    long threshold = chunkedUploadThreshold;
+    return (threshold > 0 && file.length() >= threshold) ||
+      uploadOffsets.isComplete(UploadOffsets.key(instanceId, file), file.length());
+  }
+
+  /**
+   * @return digests of the files, empty when deduplication is off.
+   */
+  private Map<File, String> digestFiles(List<File> files) throws IOException {
+    Map<File, String> digests = new HashMap<File, String>();
+    ResultDigests cache = resultDigests;
+    if (cache == null || !deduplicationSupported) return digests;
+    for (File file : files)
+      digests.put(file, cache.digest(file));
+    return digests;
+  }
+
+  /**
+   * Asks the server which contents it doesn't have yet:
+   * <code>check_result_files.json</code> with <code>{"digests": [...]}</code> answers <code>{"missing": [...]}</code>.
+   *
+   * @return the missing digests, null when all files should be sent.
+   */
+  private Set<String> findMissingDigests(Collection<String> digests) throws Exception {
+    if (digests.isEmpty() || !deduplicationSupported) return null;
+    Map<String, Object> request = new HashMap<String, Object>();
+    request.put("digests", new HashSet<String>(digests));
+    Transport.Request httpRequest = Transport.Request.post(constructURL("check_result_files").toString());
+    setAuthenticationParameters(httpRequest);
+    boolean gzipped = setRequestBody(httpRequest, objectMapper.writeValueAsBytes(request), "application/json");
+    Transport.Response response = null;
+    try {
+      response = getTransport().execute(httpRequest);
+      int httpResult = response.getStatusCode();
+      if (httpResult == HttpStatus.SC_OK) {
+        Set<String> missing = new HashSet<String>();
+        for (JsonNode digestNode : objectMapper.readTree(response.getBody()).path("missing"))
+          missing.add(digestNode.asText());
+        return missing;
+      } else if (gzipped && httpResult == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+        gzipRequestsRejected(response);
+      } else if (httpResult == HttpStatus.SC_NOT_FOUND || httpResult == HttpStatus.SC_NOT_IMPLEMENTED) {
+        logger.warning("Server doesn't support result file deduplication (" + response.getStatusLine() + "), sending all files");
+        deduplicationSupported = false;
+      } else
+        logger.warning("Result file check failed, sending all files: " + response.getStatusLine());
+    } catch (IOException e) {
+      logger.warning("Result file check failed, sending all files: " + e.getMessage());
+    } finally {
+      if (response != null) response.release();
+    }
+    return null;
+  }
+
+  private void forgetUploadOffsets(TaskResult result) {
+    if (result.getFiles() == null) return;
+    for (File file : result.getFiles())
+      uploadOffsets.remove(UploadOffsets.key(result.getInstanceId(), file));
+  }
+
+  /**
+   * Uploads a result file in ranges of the configured chunk size, each one a separate request:
+   * <code>upload_result_file_chunk.json?instance_id=&amp;file_name=&amp;file_size=&amp;offset=</code>.
+   * The server answers <code>{"offset": n}</code> with the size it has confirmed so far, or 409 with the
+   * same body when the offset doesn't match it. Confirmed offsets are saved, so an upload interrupted
+   * by a failure or a restart resumes from the last acknowledged chunk. The file is referenced in
+   * <code>chunked_files[]</code> of its result.
+   *
+   * @return false when the server doesn't support chunked uploads and the file should be sent with its result.
+   */
+  public boolean uploadResultFile(String instanceId, File file) throws Exception {
+    if (!chunkedUploadSupported) return false;
+    String key = UploadOffsets.key(instanceId, file);
+    long size = file.length();
+    long offset = uploadOffsets.get(key);
+    if (offset > 0 && offset < size)
+      logger.info("Resuming upload of " + file.getName() + " at " + offset + " of " + size + " bytes");
+    StringBuilder urlBuilder = constructURL("upload_result_file_chunk");
+    urlBuilder.append("&instance_id=").append(instanceId);
+    urlBuilder.append("&file_name=").append(URLEncoder.encode(file.getName(), "UTF-8"));
+    urlBuilder.append("&file_size=").append(size);
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      int failures = 0;
+      while (offset < size) {
+        long length = Math.min(uploadChunkSize, size - offset);
+        Transport.Request request = Transport.Request.post(urlBuilder.toString() + "&offset=" + offset);
+        setAuthenticationParameters(request);
+        request.setEntity(new FileRangeRequestEntity(channel, offset, length));
+        long confirmed = offset;
+        Transport.Response response = null;
+        try {
+          response = getTransport().execute(request);
+          int httpResult = response.getStatusCode();
+          if (httpResult == HttpStatus.SC_OK || httpResult == HttpStatus.SC_CONFLICT) {
+            confirmed = objectMapper.readTree(response.getBody()).path("offset").asLong();
+          } else if (httpResult == HttpStatus.SC_NOT_FOUND || httpResult == HttpStatus.SC_NOT_IMPLEMENTED) {
+            logger.warning("Server doesn't support chunked uploads (" + response.getStatusLine() + "), uploading files with their results");
+            chunkedUploadSupported = false;
+            return false;
+          } else if (httpResult >= HttpStatus.SC_INTERNAL_SERVER_ERROR)
+            logger.warning("Failed to upload " + file.getName() + " at " + offset + ": " + response.getStatusLine());
+          else
+            generateApiException(response);
+        } catch (IOException e) {
+          logger.warning("Failed to upload " + file.getName() + " at " + offset + ": " + e.getMessage());
+        } finally {
+          if (response != null) response.release();
+        }
+        if (confirmed != offset && confirmed >= 0 && confirmed <= size) {
+          // a lower offset comes from a server that lost chunks; it resets the retries only when progressing
+          if (confirmed > offset) failures = 0;
+          else if (++failures > CHUNK_RETRIES)
+            throw new IOException("Upload of " + file.getName() + " stopped at " + offset + " of " + size + " bytes");
+          offset = confirmed;
+          uploadOffsets.put(key, offset);
+        } else if (++failures > CHUNK_RETRIES)
+          throw new IOException("Upload of " + file.getName() + " stopped at " + offset + " of " + size + " bytes");
+      }
+    } finally {
+      in.close();
+    }
+    return true;
+  }
+
+  /**
+   * Adds <code>result_file_digests[name]</code> parts for the digested files and
+   * sends only the files with missing digests (all of them when <code>missing</code> is null).
+   */
+  private void addFileParts(List<Part> parts, String prefix, List<File> files, Map<File, String> digests,
+                            Set<String> missing, ResultCompression compression) throws FileNotFoundException {
+    String digestsField = prefix.isEmpty() ? "result_file_digests" : prefix + "[result_file_digests]";
+    List<File> missingFiles = new ArrayList<File>();
+    for (File file : files) {
+      String digest = digests.get(file);
+      if (digest != null)
+        parts.add(new StringPart(digestsField + "[" + file.getName() + "]", digest, "UTF-8"));
+      if (digest == null || missing == null || missing.contains(digest))
+        missingFiles.add(file);
+      else
+        deduplicatedResultBytes.addAndGet(file.length());
+    }
+    if (!missingFiles.isEmpty())
+      addFileParts(parts, prefix, missingFiles, compression);
+  }
+
+  /**
+   * Adds the result files as <code>result_files[name]</code> parts (<code>name.gz</code> when gzip'ed),
+   * or as one <code>result_bundle</code> zip part. Package-private for the benchmarks.
+   */
+  void addFileParts(List<Part> parts, String prefix, List<File> files, ResultCompression compression)
+    throws FileNotFoundException {
+    String filesField = prefix.isEmpty() ? "result_files" : prefix + "[result_files]";
+    switch (compression) {
+      case GZIP:
+        for (File file : files)
+          parts.add(new CompressedFilesPart(filesField + "[" + file.getName() + ".gz]", file.getName() + ".gz",
+                                            Collections.singletonList(file), compression));
+        break;
+      case ZIP:
+        parts.add(new CompressedFilesPart(prefix.isEmpty() ? "result_bundle" : prefix + "[result_bundle]",
+                                          "results.zip", files, compression));
+        break;
+      default:
+        for (File file : files)
+          parts.add(new FilePart(filesField + "[" + file.getName() + "]", file));
+    }
+  }
+
+  private List<TaskResult> uploadOneByOne(List<TaskResult> results) {
+    List<TaskResult> failed = new ArrayList<TaskResult>();
+    for (TaskResult result : results) {
+      try {
+        uploadResult(result);
+      } catch (Exception e) {
+        logger.severe("Failed to upload result of instance " + result.getInstanceId() + ": " + e.getMessage());
+        failed.add(result);
       }
-      if (!proxyUser.isEmpty()) {
-        NTCredentials credentials = new NTCredentials(proxyUser, proxyPassword, "", "");
-        httpClient.getState().setProxyCredentials(AuthScope.ANY, credentials);
+    }
+    return failed;
+  }
+
+  /**
+   * Response is <code>{"results": [{"instance_id": "1", "status": "ok"}, ...]}</code>,
+   * instances missing from it are treated as failed.
+   */
+  private List<TaskResult> parseUploadStatuses(InputStream stream, List<TaskResult> results) throws IOException {
+    JsonNode rootNode = objectMapper.readTree(stream);
+    Set<String> accepted = new HashSet<String>();
+    for (JsonNode statusNode : rootNode.path("results")) {
+      if ("ok".equals(statusNode.path("status").asText()))
+        accepted.add(statusNode.path("instance_id").asText());
+      else
+        logger.warning("Server rejected result of instance " + statusNode.path("instance_id").asText() + ": " +
+                       statusNode.path("error").asText());
+    }
+    List<TaskResult> failed = new ArrayList<TaskResult>();
+    for (TaskResult result : results) {
+      if (!accepted.contains(result.getInstanceId())) failed.add(result);
+    }
+    return failed;
+  }
+
+  private Task parseTaskDocument(InputStream stream) throws IOException {
+    return taskDecoder.decode(stream);
+  }
+
+  // package-private for the benchmarks
+  List<Task> parseTaskDocuments(InputStream stream) throws IOException {
+    return taskDecoder.decodeAll(stream);
+  }
+
+  private void generateApiException(Transport.Response response) throws Exception {
+    String body;
+    if (isGzipped(response)) {
+      ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+      InputStream in = getResponseBody(response);
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) decompressed.write(buffer, 0, read);
+      body = decompressed.toString("UTF-8");
+    } else
+      body = response.getBodyAsString();
+    throw new Exception("Remote call Failed Error #" + response.getStatusCode() + ":" + body);
+  }
+
+  private static boolean isGzipped(Transport.Response response) {
+    String encoding = response.getHeader("Content-Encoding");
+    return encoding != null && encoding.trim().equalsIgnoreCase("gzip");
+  }
+
+  /**
+   * @return the response body, decompressed as it's read when the server gzip'ed it.
+   */
+  private InputStream getResponseBody(Transport.Response response) throws IOException {
+    if (!isGzipped(response)) return response.getBody();
+    InputStream compressed = new CountingInputStream(response.getBody(), compressedTransferBytes);
+    return new CountingInputStream(new GZIPInputStream(compressed, 8192), uncompressedTransferBytes);
+  }
+
+  /**
+   * Sets a body that isn't a result file, gzip'ed when that's turned on and makes it smaller.
+   *
+   * @return whether the body was gzip'ed.
+   */
+  private boolean setRequestBody(Transport.Request request, byte[] body, String contentType) throws IOException {
+    if (gzipRequests && gzipRequestsSupported) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2 + 64);
+      GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+      gzip.write(body);
+      gzip.close();
+      if (compressed.size() < body.length) {
+        request.setHeader("Content-Encoding", "gzip");
+        request.setEntity(new ByteArrayRequestEntity(compressed.toByteArray(), contentType));
+        uncompressedTransferBytes.addAndGet(body.length);
+        compressedTransferBytes.addAndGet(compressed.size());
+        return true;
       }
-      httpClient.getHttpConnectionManager().getParams().setConnectionTimeout(DEFAULT_CONNECTION_TIMEOUT);
     }
-    return httpClient;
+    request.setEntity(new ByteArrayRequestEntity(body, contentType));
+    return false;
+  }
+
+  private void gzipRequestsRejected(Transport.Response response) {
+    logger.warning("Server doesn't accept gzip'ed requests (" + response.getStatusLine() + "), sending them uncompressed");
+    gzipRequestsSupported = false;
+  }
+
+  /**
+   * @return the transport set with {@link #setTransport(Transport)}, commons-httpclient by default.
+   */
+  public synchronized Transport getTransport() {
+    if (transport == null)
+      transport = new CommonsTransport(connectionPool, proxyHost, proxyPort, proxyUser, proxyPassword, DEFAULT_CONNECTION_TIMEOUT);
+    return transport;
   }
 
   private StringBuilder constructURL(String command) {
@@ -168,11 +781,11 @@ public class Client {
   }
 
 
-  private void setAuthenticationParameters(HttpMethod request) throws NoSuchAlgorithmException {
+  private void setAuthenticationParameters(Transport.Request request) throws NoSuchAlgorithmException {
     StringBuilder sb = new StringBuilder();
     long timestamp = new Date().getTime();
     sb.append("custom api_token=").append(apiToken);
-    request.setRequestHeader("Authorization", sb.toString());
+    request.setHeader("Authorization", sb.toString());
   }
 
   public static class Task {
@@ -182,6 +795,8 @@ public class Client {
     private final String pathToTestResults;
     private final int numOfFilesToUpload;
     private final int timeoutInSeconds;
+    private final String resultsInclude;
+    private final String resultsExclude;
 
     public Task(String instanceId,
                 String description,
@@ -189,6 +804,25 @@ public class Client {
                 String pathToTestResults,
                 int numOfFilesToUpload,
                 int timeoutInSeconds) {
+      this(instanceId, description, pathToTestApplication, pathToTestResults, numOfFilesToUpload, timeoutInSeconds,
+           null, null);
+    }
+
+    /**
+     * @param resultsInclude glob of the result files to upload, relative to the results path
+     *                       (null for the files directly in it).
+     * @param resultsExclude glob of the result files and directories to skip, or null.
+     */
+    public Task(String instanceId,
+                String description,
+                String pathToTestApplication,
+                String pathToTestResults,
+                int numOfFilesToUpload,
+                int timeoutInSeconds,
+                String resultsInclude,
+                String resultsExclude) {
+      this.resultsInclude = resultsInclude;
+      this.resultsExclude = resultsExclude;
       this.instanceId = instanceId;
       this.description = description;
       this.pathToTestApplication = pathToTestApplication;
@@ -220,6 +854,14 @@ public class Client {
     public int getTimeoutInSeconds() {
       return timeoutInSeconds;
     }
+
+    public String getResultsInclude() {
+      return resultsInclude;
+    }
+
+    public String getResultsExclude() {
+      return resultsExclude;
+    }
   }
 
   public class APIException extends Exception {
@@ -233,12 +875,22 @@ public class Client {
     private final int exitCode;
     private final List<File> files;
     private final String output;
+    private final long streamedOutputBytes;
 
     public TaskResult(String instanceId, int exitCode, List<File> files, String output) {
+      this(instanceId, exitCode, files, output, -1);
+    }
+
+    /**
+     * @param streamedOutputBytes size of the console output already streamed with {@link Client#appendOutput},
+     *                            -1 when it wasn't streamed.
+     */
+    public TaskResult(String instanceId, int exitCode, List<File> files, String output, long streamedOutputBytes) {
       this.instanceId = instanceId;
       this.exitCode = exitCode;
       this.files = files;
       this.output = output;
+      this.streamedOutputBytes = streamedOutputBytes;
     }
 
     public String getInstanceId() {
@@ -257,11 +909,193 @@ public class Client {
       return getOutput(255);
     }
 
+    public long getStreamedOutputBytes() {
+      return streamedOutputBytes;
+    }
+
     public String getOutput(int maxLength) {
       return output.length() > maxLength ? output.substring(0, maxLength - 6) + "<...>" : output;
     }
   }
 
+  /**
+   * Multipart part that compresses files while they are written into the request body.
+   * Its length is unknown up front, so the request is sent chunked.
+   */
+  private class CompressedFilesPart extends PartBase {
+    private final String fileName;
+    private final List<File> files;
+    private final ResultCompression compression;
+
+    private CompressedFilesPart(String name, String fileName, List<File> files, ResultCompression compression) {
+      super(name, compression == ResultCompression.ZIP ? "application/zip" : "application/gzip", null, "binary");
+      this.fileName = fileName;
+      this.files = files;
+      this.compression = compression;
+    }
+
+    @Override
+    protected void sendDispositionHeader(OutputStream out) throws IOException {
+      super.sendDispositionHeader(out);
+      out.write(EncodingUtil.getAsciiBytes("; filename=\"" + fileName + "\""));
+    }
+
+    @Override
+    protected long lengthOfData() {
+      return -1;
+    }
+
+    @Override
+    protected void sendData(OutputStream out) throws IOException {
+      CountingOutputStream counter = new CountingOutputStream(out);
+      long raw = 0;
+      byte[] buffer = new byte[8192];
+      if (compression == ResultCompression.ZIP) {
+        ZipOutputStream zip = new ZipOutputStream(counter);
+        Set<String> names = new HashSet<String>();
+        for (File file : files) {
+          // files of one result may share a name
+          String entryName = file.getName();
+          for (int i = 1; !names.add(entryName); ++i)
+            entryName = i + "_" + file.getName();
+          zip.putNextEntry(new ZipEntry(entryName));
+          raw += copy(file, zip, buffer);
+          zip.closeEntry();
+        }
+        zip.finish();
+      } else {
+        GZIPOutputStream gzip = new GZIPOutputStream(counter);
+        for (File file : files)
+          raw += copy(file, gzip, buffer);
+        gzip.finish();
+      }
+      rawResultBytes.addAndGet(raw);
+      compressedResultBytes.addAndGet(counter.getCount());
+      logger.info("Sent " + fileName + ": " + raw + " bytes compressed to " + counter.getCount() + " bytes");
+    }
+
+    private long copy(File file, OutputStream out, byte[] buffer) throws IOException {
+      long copied = 0;
+      InputStream in = new FileInputStream(file);
+      try {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+          copied += read;
+        }
+      } finally {
+        in.close();
+      }
+      return copied;
+    }
+  }
+
+  /**
+   * Request body with a range of a file, transferred from its channel into the connection.
+   */
+  private static class FileRangeRequestEntity implements RequestEntity {
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+
+    private FileRangeRequestEntity(FileChannel channel, long offset, long length) {
+      this.channel = channel;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public boolean isRepeatable() {
+      return true;
+    }
+
+    public void writeRequest(OutputStream out) throws IOException {
+      WritableByteChannel target = Channels.newChannel(out);
+      long position = offset;
+      long remaining = length;
+      while (remaining > 0) {
+        long transferred = channel.transferTo(position, remaining, target);
+        if (transferred <= 0)
+          throw new IOException("File ended at " + position + ", expected " + (offset + length) + " bytes");
+        position += transferred;
+        remaining -= transferred;
+      }
+      out.flush();
+    }
+
+    public long getContentLength() {
+      return length;
+    }
+
+    public String getContentType() {
+      return "application/octet-stream";
+    }
+  }
+
+  /**
+   * Counts the bytes written through it; doesn't close the underlying stream, it belongs to the request.
+   */
+  private static class CountingOutputStream extends FilterOutputStream {
+    private long count = 0;
+
+    private CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      ++count;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+
+    public long getCount() {
+      return count;
+    }
+  }
+
+  /**
+   * Adds the bytes read through it to a counter.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    private final AtomicLong count;
+
+    private CountingInputStream(InputStream in, AtomicLong count) {
+      super(in);
+      this.count = count;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) count.incrementAndGet();
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = in.read(b, off, len);
+      if (read > 0) count.addAndGet(read);
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(n);
+      count.addAndGet(skipped);
+      return skipped;
+    }
+  }
+
   // adopted from http://svn.apache.org/viewvc/httpcomponents/oac.hc3x/trunk/src/contrib/org/apache/commons/httpclient/contrib/ssl/
 
   public static class EasyX509TrustManager implements X509TrustManager {
@@ -0,0 +1,119 @@
+package com.practitest.api;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.NTCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.protocol.Protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * {@link Transport} on commons-httpclient: HTTP/1.1 keep-alive connections from a {@link ConnectionPool},
+ * NTLM or Basic proxy authentication, and server certificates checked by {@link Client.EasyX509TrustManager}.
+ */
+public class CommonsTransport implements Transport {
+  private final ConnectionPool connectionPool;
+  private final String proxyHost;
+  private final String proxyPort;
+  private final String proxyUser;
+  private final String proxyPassword;
+  private final int connectionTimeoutMillis;
+  private HttpClient httpClient;
+
+  /**
+   * @param connectionPool null for a pool with the default limits.
+   */
+  public CommonsTransport(ConnectionPool connectionPool, String proxyHost, String proxyPort, String proxyUser,
+                          String proxyPassword, int connectionTimeoutMillis) {
+    this.connectionPool = connectionPool;
+    this.proxyHost = proxyHost;
+    this.proxyPort = proxyPort;
+    this.proxyUser = proxyUser;
+    this.proxyPassword = proxyPassword;
+    this.connectionTimeoutMillis = connectionTimeoutMillis;
+  }
+
+  public Response execute(Request request) throws IOException {
+    HttpMethodBase method;
+    if (request.getMethod().equals("POST")) {
+      PostMethod postMethod = new PostMethod(request.getUrl());
+      if (request.getEntity() != null) postMethod.setRequestEntity(request.getEntity());
+      method = postMethod;
+    } else
+      method = new GetMethod(request.getUrl());
+    for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+      method.setRequestHeader(header.getKey(), header.getValue());
+    try {
+      getHTTPClient().executeMethod(method);
+    } catch (IOException e) {
+      method.releaseConnection();
+      throw e;
+    }
+    return new CommonsResponse(method);
+  }
+
+  public String describe() {
+    return connectionPool != null ? connectionPool.describe() : "HTTP/1.1 connections";
+  }
+
+  private synchronized HttpClient getHTTPClient() {
+    if (httpClient == null) {
+      Protocol easyHTTPS = new Protocol("https", new Client.EasySSLProtocolSocketFactory(), 443);
+      Protocol.registerProtocol("https", easyHTTPS);
+
+      // slots, the prefetcher and uploads call the client concurrently
+      httpClient = new HttpClient(connectionPool != null ? connectionPool.getManager() : new MultiThreadedHttpConnectionManager());
+      if (!proxyHost.isEmpty()) {
+        httpClient.getHostConfiguration().setProxy(proxyHost, Integer.parseInt(proxyPort));
+      }
+      if (!proxyUser.isEmpty()) {
+        NTCredentials credentials = new NTCredentials(proxyUser, proxyPassword, "", "");
+        httpClient.getState().setProxyCredentials(AuthScope.ANY, credentials);
+      }
+      httpClient.getHttpConnectionManager().getParams().setConnectionTimeout(connectionTimeoutMillis);
+    }
+    return httpClient;
+  }
+
+  private static class CommonsResponse implements Response {
+    private final HttpMethodBase method;
+
+    private CommonsResponse(HttpMethodBase method) {
+      this.method = method;
+    }
+
+    public int getStatusCode() {
+      return method.getStatusCode();
+    }
+
+    public String getStatusLine() {
+      return method.getStatusLine().toString();
+    }
+
+    public String getHeader(String name) {
+      Header header = method.getResponseHeader(name);
+      return header != null ? header.getValue() : null;
+    }
+
+    public InputStream getBody() throws IOException {
+      InputStream body = method.getResponseBodyAsStream();
+      return body != null ? body : new ByteArrayInputStream(new byte[0]);
+    }
+
+    public String getBodyAsString() throws IOException {
+      return method.getResponseBodyAsString();
+    }
+
+    public void release() {
+      method.releaseConnection();
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package com.practitest.api;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keep-alive connections to the PractiTest server (or the proxy), shared by the polls, uploads and console
+ * streaming of a {@link Client}, and by the next client as long as the server and the proxy don't change.
+ * Connections idle for longer than the idle timeout are closed.
+ */
+public class ConnectionPool {
+  private static final long IDLE_CHECK_INTERVAL_MILLIS = 5000;
+
+  private final String key;
+  private final MultiThreadedHttpConnectionManager manager = new CountingConnectionManager();
+  private final IdleConnectionTimeoutThread idleConnectionCloser = new IdleConnectionTimeoutThread();
+  private final AtomicLong numOfRequests = new AtomicLong();
+  private final AtomicLong numOfNewConnections = new AtomicLong();
+
+  public ConnectionPool(String serverURL, String proxyHost, String proxyPort, String proxyUser, String proxyPassword,
+                        int maxConnectionsPerHost, int maxTotalConnections, long idleTimeoutMillis) {
+    this.key = key(serverURL, proxyHost, proxyPort, proxyUser, proxyPassword);
+    setLimits(maxConnectionsPerHost, maxTotalConnections, idleTimeoutMillis);
+    idleConnectionCloser.setName("HTTP idle connection closer");
+    idleConnectionCloser.setTimeoutInterval(Math.min(IDLE_CHECK_INTERVAL_MILLIS, Math.max(idleTimeoutMillis / 2, 100)));
+    idleConnectionCloser.addConnectionManager(manager);
+    idleConnectionCloser.start();
+  }
+
+  /**
+   * @return whether the pooled connections can be used for this server and proxy.
+   */
+  public boolean isFor(String serverURL, String proxyHost, String proxyPort, String proxyUser, String proxyPassword) {
+    return key.equals(key(serverURL, proxyHost, proxyPort, proxyUser, proxyPassword));
+  }
+
+  public void setLimits(int maxConnectionsPerHost, int maxTotalConnections, long idleTimeoutMillis) {
+    manager.getParams().setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+    manager.getParams().setMaxTotalConnections(Math.max(maxTotalConnections, maxConnectionsPerHost));
+    idleConnectionCloser.setConnectionTimeout(idleTimeoutMillis);
+  }
+
+  HttpConnectionManager getManager() {
+    return manager;
+  }
+
+  /**
+   * @return open connections, idle or in use.
+   */
+  public int getNumOfConnections() {
+    return manager.getConnectionsInPool();
+  }
+
+  public long getNumOfRequests() {
+    return numOfRequests.get();
+  }
+
+  /**
+   * @return connections opened (TCP and TLS handshakes), including reopened stale ones.
+   */
+  public long getNumOfNewConnections() {
+    return numOfNewConnections.get();
+  }
+
+  public String describe() {
+    return "HTTP connections: " + getNumOfConnections() + " open" +
+            " (max " + manager.getParams().getDefaultMaxConnectionsPerHost() + " per host, " +
+            manager.getParams().getMaxTotalConnections() + " total)" +
+            ", requests: " + getNumOfRequests() + ", new connections: " + getNumOfNewConnections();
+  }
+
+  /**
+   * Closes all connections, requests still running on them fail.
+   */
+  public void shutdown() {
+    idleConnectionCloser.shutdown();
+    manager.shutdown();
+  }
+
+  private static String key(String serverURL, String proxyHost, String proxyPort, String proxyUser, String proxyPassword) {
+    return serverURL + "|" + proxyHost + "|" + proxyPort + "|" + proxyUser + "|" + proxyPassword;
+  }
+
+  private class CountingConnectionManager extends MultiThreadedHttpConnectionManager {
+    @Override
+    public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout)
+      throws ConnectionPoolTimeoutException {
+      HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+      numOfRequests.incrementAndGet();
+      // a connection that isn't open is opened by the request
+      if (!connection.isOpen()) numOfNewConnections.incrementAndGet();
+      return connection;
+    }
+  }
+}
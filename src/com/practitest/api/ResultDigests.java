@@ -0,0 +1,74 @@
+package com.practitest.api;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SHA-256 digests of result files, cached by path, size and time stamp with LRU eviction,
+ * so unchanged files aren't read again on every run.
+ */
+class ResultDigests {
+  private final Map<String, String> cache;
+
+  ResultDigests(final int maxEntries) {
+    cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Files of different directories may share a name, size and time stamp (e.g. screenshots of two tests
+   * written in the same second), so the key has the whole path.
+   */
+  private static String key(File file) throws IOException {
+    return file.getCanonicalPath() + "/" + file.length() + "/" + file.lastModified();
+  }
+
+  String digest(File file) throws IOException {
+    String key = key(file);
+    synchronized (cache) {
+      String digest = cache.get(key);
+      if (digest != null) return digest;
+    }
+    String digest = compute(file);
+    synchronized (cache) {
+      cache.put(key, digest);
+    }
+    return digest;
+  }
+
+  int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  static String compute(File file) throws IOException {
+    MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-256 isn't available: " + e.getMessage());
+    }
+    byte[] buffer = new byte[64 * 1024];
+    InputStream in = new FileInputStream(file);
+    try {
+      int read;
+      while ((read = in.read(buffer)) != -1)
+        messageDigest.update(buffer, 0, read);
+    } finally {
+      in.close();
+    }
+    return String.format("%064x", new BigInteger(1, messageDigest.digest()));
+  }
+}
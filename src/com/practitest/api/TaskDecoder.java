@@ -0,0 +1,181 @@
+package com.practitest.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes <code>next_test</code> / <code>next_tests</code> responses into tasks with Jackson's streaming parser,
+ * without building a tree. The response is a task document, an array of them, or several documents one after
+ * the other; fields other than the task ones are skipped. Values are read like <code>JsonNode.asText()</code> and
+ * <code>asInt()</code> would, missing ones are empty or 0.
+ */
+class TaskDecoder {
+  private final JsonFactory jsonFactory;
+
+  /**
+   * @param jsonFactory shared, it's thread-safe once configured.
+   */
+  TaskDecoder(JsonFactory jsonFactory) {
+    this.jsonFactory = jsonFactory;
+  }
+
+  /**
+   * @return the first task, null when the response has none.
+   */
+  Client.Task decode(InputStream stream) throws IOException {
+    JsonParser parser = jsonFactory.createParser(stream);
+    try {
+      List<Client.Task> tasks = new ArrayList<Client.Task>(1);
+      while (tasks.isEmpty() && parser.nextToken() != null) decodeRoot(parser, tasks);
+      return tasks.isEmpty() ? null : tasks.get(0);
+    } finally {
+      parser.close();
+    }
+  }
+
+  /**
+   * @return all the tasks of the response, documents without an instance are left out.
+   */
+  List<Client.Task> decodeAll(InputStream stream) throws IOException {
+    JsonParser parser = jsonFactory.createParser(stream);
+    try {
+      List<Client.Task> tasks = new ArrayList<Client.Task>();
+      while (parser.nextToken() != null) decodeRoot(parser, tasks);
+      return tasks;
+    } finally {
+      parser.close();
+    }
+  }
+
+  private void decodeRoot(JsonParser parser, List<Client.Task> tasks) throws IOException {
+    if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+      decodeDocument(parser, tasks);
+      return;
+    }
+    JsonToken token;
+    while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+      if (token == null) throw new IOException("Unexpected end of the task list");
+      decodeDocument(parser, tasks);
+    }
+  }
+
+  private void decodeDocument(JsonParser parser, List<Client.Task> tasks) throws IOException {
+    if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+      parser.skipChildren();
+      return;
+    }
+    TaskFields fields = new TaskFields();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if (name.equals("instance")) {
+        fields.hasInstance = true;
+        decodeInstance(parser, fields);
+      } else if (name.equals("test")) {
+        decodeTest(parser, fields);
+      } else if (name.equals("testSet")) {
+        decodeTestSet(parser, fields);
+      } else {
+        parser.skipChildren();
+      }
+    }
+    if (fields.hasInstance) tasks.add(fields.toTask());
+  }
+
+  private void decodeInstance(JsonParser parser, TaskFields fields) throws IOException {
+    if (!isObject(parser)) return;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if (name.equals("id"))
+        fields.instanceId = text(parser);
+      else if (name.equals("timeout_in_seconds"))
+        fields.timeoutInSeconds = number(parser);
+      else
+        parser.skipChildren();
+    }
+  }
+
+  private void decodeTest(JsonParser parser, TaskFields fields) throws IOException {
+    if (!isObject(parser)) return;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if (name.equals("id"))
+        fields.testId = text(parser);
+      else if (name.equals("path_to_application"))
+        fields.pathToApplication = text(parser);
+      else if (name.equals("path_to_results"))
+        fields.pathToResults = text(parser);
+      else if (name.equals("num_of_files_to_upload"))
+        fields.numOfFilesToUpload = number(parser);
+      else if (name.equals("results_include"))
+        fields.resultsInclude = textOrNull(parser);
+      else if (name.equals("results_exclude"))
+        fields.resultsExclude = textOrNull(parser);
+      else
+        parser.skipChildren();
+    }
+  }
+
+  private void decodeTestSet(JsonParser parser, TaskFields fields) throws IOException {
+    if (!isObject(parser)) return;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      if (name.equals("name"))
+        fields.testSetName = text(parser);
+      else
+        parser.skipChildren();
+    }
+  }
+
+  /**
+   * Skips anything but an object, the fields inside it are then missing.
+   */
+  private static boolean isObject(JsonParser parser) throws IOException {
+    if (parser.getCurrentToken() == JsonToken.START_OBJECT) return true;
+    parser.skipChildren();
+    return false;
+  }
+
+  private static String text(JsonParser parser) throws IOException {
+    if (parser.getCurrentToken().isScalarValue()) return parser.getText();
+    parser.skipChildren();
+    return "";
+  }
+
+  private static String textOrNull(JsonParser parser) throws IOException {
+    return parser.getCurrentToken() == JsonToken.VALUE_NULL ? null : text(parser);
+  }
+
+  private static int number(JsonParser parser) throws IOException {
+    if (parser.getCurrentToken().isScalarValue()) return parser.getValueAsInt(0);
+    parser.skipChildren();
+    return 0;
+  }
+
+  private static class TaskFields {
+    private boolean hasInstance = false;
+    private String instanceId = "";
+    private int timeoutInSeconds = 0;
+    private String testId = "";
+    private String pathToApplication = "";
+    private String pathToResults = "";
+    private int numOfFilesToUpload = 0;
+    private String resultsInclude = null;
+    private String resultsExclude = null;
+    private String testSetName = "";
+
+    private Client.Task toTask() {
+      return new Client.Task(instanceId, "Test id:" + testId + "Suite:" + testSetName, pathToApplication,
+                             pathToResults, numOfFilesToUpload, timeoutInSeconds, resultsInclude, resultsExclude);
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package com.practitest.api;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sends the HTTP requests of a {@link Client}: {@link CommonsTransport} (commons-httpclient, HTTP/1.1) or
+ * <code>Http2Transport</code> (java.net.http, HTTP/2, built from <code>src-java11</code>).
+ * <p>
+ * Request bodies are commons-httpclient <code>RequestEntity</code> objects, both transports let them write
+ * the body, so multipart, file range and compressed bodies are the same whatever the transport.
+ */
+public interface Transport {
+  /**
+   * @return the response, {@link Response#release()} it when done.
+   */
+  Response execute(Request request) throws IOException;
+
+  /**
+   * @return short description for the log, with connection statistics when there are any.
+   */
+  String describe();
+
+  class Request {
+    private final String method;
+    private final String url;
+    private final Map<String, String> headers = new LinkedHashMap<String, String>();
+    private RequestEntity entity;
+
+    private Request(String method, String url) {
+      this.method = method;
+      this.url = url;
+    }
+
+    public static Request get(String url) {
+      return new Request("GET", url);
+    }
+
+    public static Request post(String url) {
+      return new Request("POST", url);
+    }
+
+    public String getMethod() {
+      return method;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    public void setHeader(String name, String value) {
+      headers.put(name, value);
+    }
+
+    public Map<String, String> getHeaders() {
+      return Collections.unmodifiableMap(headers);
+    }
+
+    public void setEntity(RequestEntity entity) {
+      this.entity = entity;
+    }
+
+    /**
+     * @return body of a POST request, null when it has none.
+     */
+    public RequestEntity getEntity() {
+      return entity;
+    }
+  }
+
+  interface Response {
+    int getStatusCode();
+
+    /**
+     * @return e.g. <code>HTTP/1.1 404 Not Found</code>, for the log.
+     */
+    String getStatusLine();
+
+    /**
+     * @return value of the response header, null when there's none.
+     */
+    String getHeader(String name);
+
+    InputStream getBody() throws IOException;
+
+    String getBodyAsString() throws IOException;
+
+    /**
+     * Gives the connection back, the body can't be read after that.
+     */
+    void release();
+  }
+}
@@ -0,0 +1,126 @@
+package com.practitest.api;
+
+import java.io.*;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Confirmed offsets of resumable result file uploads, kept in a properties file so an upload
+ * interrupted by a failure or a restart continues from the last acknowledged chunk.
+ * <p>
+ * Every change is appended to the file (a later line of a key wins, an empty value removes it), which is
+ * rewritten once it holds mostly outdated lines. Appends aren't fsync'd: after a power loss an upload
+ * resumes from an older offset and the server answers with the one it has.
+ */
+class UploadOffsets {
+  private static final Logger logger = Logger.getLogger(UploadOffsets.class.getName());
+
+  private static final int COMPACTION_THRESHOLD = 100;
+
+  private final File file;
+  private final Properties offsets = new Properties();
+  private int numOfLines = 0;
+
+  UploadOffsets(File file) {
+    this.file = file;
+    if (file != null && file.exists()) {
+      try {
+        FileInputStream in = new FileInputStream(file);
+        try {
+          offsets.load(in);
+        } finally {
+          in.close();
+        }
+        for (String key : offsets.stringPropertyNames()) {
+          if (offsets.getProperty(key).isEmpty()) offsets.remove(key);
+        }
+        compact();
+      } catch (IOException e) {
+        logger.warning("Failed to load upload offsets from [" + file.getAbsolutePath() + "]: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Files of different directories may share a name, size and time stamp, so the key has the whole path.
+   */
+  static String key(String instanceId, File resultFile) {
+    String path;
+    try {
+      path = resultFile.getCanonicalPath();
+    } catch (IOException e) {
+      path = resultFile.getAbsolutePath();
+    }
+    return instanceId + "/" + path + "/" + resultFile.length() + "/" + resultFile.lastModified();
+  }
+
+  synchronized long get(String key) {
+    return Long.parseLong(offsets.getProperty(key, "0"));
+  }
+
+  /**
+   * @return whether the whole file was confirmed, e.g. uploaded while its test was running.
+   */
+  synchronized boolean isComplete(String key, long size) {
+    return offsets.getProperty(key) != null && get(key) == size;
+  }
+
+  synchronized void put(String key, long offset) {
+    offsets.setProperty(key, String.valueOf(offset));
+    append(key, String.valueOf(offset));
+  }
+
+  synchronized void remove(String key) {
+    if (offsets.remove(key) != null) append(key, "");
+  }
+
+  private void append(String key, String value) {
+    if (file == null) return;
+    if (numOfLines >= Math.max(COMPACTION_THRESHOLD, 2 * offsets.size())) {
+      compact();
+      return;
+    }
+    Properties line = new Properties();
+    line.setProperty(key, value);
+    try {
+      // store() escapes the key and the value, its comment line is dropped
+      StringWriter writer = new StringWriter();
+      line.store(writer, null);
+      StringBuilder escaped = new StringBuilder();
+      for (String stored : writer.toString().split("\r?\n")) {
+        if (!stored.startsWith("#")) escaped.append(stored).append('\n');
+      }
+      FileOutputStream out = new FileOutputStream(file, true);
+      try {
+        out.write(escaped.toString().getBytes("ISO-8859-1"));
+      } finally {
+        out.close();
+      }
+      ++numOfLines;
+    } catch (IOException e) {
+      logger.warning("Failed to save upload offsets to [" + file.getAbsolutePath() + "]: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Rewrites the file with the current offsets: written to a temporary file, fsync'd and renamed.
+   */
+  private void compact() {
+    File compacted = new File(file.getPath() + ".tmp");
+    try {
+      FileOutputStream out = new FileOutputStream(compacted);
+      try {
+        offsets.store(out, "Confirmed offsets of result file uploads, used to resume them.");
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      // File.renameTo doesn't replace an existing file on Windows
+      if (!compacted.renameTo(file) && !(file.delete() && compacted.renameTo(file)))
+        throw new IOException("Failed to replace it");
+      numOfLines = offsets.size();
+    } catch (IOException e) {
+      logger.warning("Failed to save upload offsets to [" + file.getAbsolutePath() + "]: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package com.practitest.xbot;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads that spend most of their time blocked: execution slots polling the server,
+ * task runners waiting for their process, output drainers and result uploaders.
+ * <p>
+ * They are platform daemon threads, or virtual threads when the JRE has them (Java 21+, looked up by
+ * reflection so the xBot still runs on older JREs).
+ */
+public class BlockingThreads {
+  private static final Logger logger = Logger.getLogger(BlockingThreads.class.getName());
+
+  private final Method ofVirtual;
+  private final Method unstarted;
+
+  private BlockingThreads(Method ofVirtual, Method unstarted) {
+    this.ofVirtual = ofVirtual;
+    this.unstarted = unstarted;
+  }
+
+  public static BlockingThreads platform() {
+    return new BlockingThreads(null, null);
+  }
+
+  /**
+   * @return virtual threads, platform ones when the JRE doesn't support them.
+   */
+  public static BlockingThreads virtual() {
+    try {
+      Method ofVirtual = Thread.class.getMethod("ofVirtual");
+      Method unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+      // preview releases have the methods but refuse to create the threads
+      unstarted.invoke(ofVirtual.invoke(null), new Runnable() {
+        public void run() {
+        }
+      });
+      return new BlockingThreads(ofVirtual, unstarted);
+    } catch (Exception e) {
+      logger.warning("Virtual threads aren't available in Java " + System.getProperty("java.version") +
+              ", using platform threads");
+      return platform();
+    }
+  }
+
+  public boolean isVirtual() {
+    return ofVirtual != null;
+  }
+
+  /**
+   * @return an unstarted thread; virtual threads are always daemon threads.
+   */
+  public Thread newThread(Runnable runnable, String name) {
+    if (ofVirtual != null) {
+      try {
+        Thread thread = (Thread)unstarted.invoke(ofVirtual.invoke(null), runnable);
+        thread.setName(name);
+        return thread;
+      } catch (Exception e) {
+        logger.warning("Failed to create a virtual thread, using a platform thread: " + e.getMessage());
+      }
+    }
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  /**
+   * @return factory of threads named <code>name #n</code>.
+   */
+  public ThreadFactory factory(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        return BlockingThreads.this.newThread(runnable, name + " #" + count.incrementAndGet());
+      }
+    };
+  }
+}
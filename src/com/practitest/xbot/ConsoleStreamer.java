@@ -0,0 +1,137 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Streams the console output of a running task to the server.
+ * <p/>
+ * Follows the console spill file written by {@link OutputCapture}: every interval the bytes written since
+ * the last send are pushed with {@link Client#appendOutput}, at most <code>chunkSize</code> bytes per request.
+ * Only one chunk is held in memory. The state is locked only while a chunk is read, not during the request.
+ */
+class ConsoleStreamer implements Runnable {
+  private static final Logger logger = Logger.getLogger(ConsoleStreamer.class.getName());
+
+  private final Client client;
+  private final String instanceId;
+  private final File source;
+  private final byte[] chunk;
+  // serializes the sends of the scheduled runs and finish(), the chunks have to go in order
+  private final Object sending = new Object();
+
+  private RandomAccessFile reader;
+  private long offset = 0;
+  private boolean failed = false;
+  private boolean finished = false;
+  private ScheduledFuture<?> future;
+
+  public ConsoleStreamer(Client client, String instanceId, File source, int chunkSize) {
+    this.client = client;
+    this.instanceId = instanceId;
+    this.source = source;
+    this.chunk = new byte[chunkSize];
+  }
+
+  public void start(ScheduledExecutorService executor, long intervalMillis) {
+    future = executor.scheduleWithFixedDelay(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void run() {
+    send(false);
+  }
+
+  /**
+   * Sends what is left of the output (call after the output was fully drained).
+   *
+   * @return number of bytes streamed, -1 when streaming failed and the output has to be uploaded with the result.
+   */
+  public long finish() {
+    if (future != null) future.cancel(false);
+    synchronized (sending) {
+      send(true);
+      synchronized (this) {
+        // a scheduled run that already started doesn't reopen the file
+        finished = true;
+        if (reader != null) {
+          try {
+            reader.close();
+          } catch (IOException ignored) {
+          }
+          reader = null;
+        }
+        return failed ? -1 : offset;
+      }
+    }
+  }
+
+  /**
+   * Stops streaming, e.g. when the spill file couldn't be written: the output is uploaded with the result.
+   */
+  public synchronized void abort() {
+    if (future != null) future.cancel(false);
+    failed = true;
+  }
+
+  /**
+   * @param last whether the output was fully drained: the source has to exist by then, a scheduled run
+   *             may come before the capture created it.
+   */
+  private void send(boolean last) {
+    synchronized (sending) {
+      while (true) {
+        long chunkOffset;
+        int read;
+        synchronized (this) {
+          if (failed || finished) return;
+          try {
+            if (reader == null) {
+              if (!source.exists()) {
+                if (last) fail(new FileNotFoundException("[" + source.getAbsolutePath() + "] is missing"));
+                return;
+              }
+              reader = new RandomAccessFile(source, "r");
+            }
+            if (reader.length() <= offset) return;
+            reader.seek(offset);
+            read = reader.read(chunk, 0, (int) Math.min(chunk.length, reader.length() - offset));
+          } catch (IOException e) {
+            fail(e);
+            return;
+          }
+          if (read <= 0) return;
+          chunkOffset = offset;
+        }
+        boolean appended;
+        try {
+          appended = client.appendOutput(instanceId, chunkOffset, chunk, read);
+        } catch (Exception e) {
+          synchronized (this) {
+            fail(e);
+          }
+          return;
+        }
+        synchronized (this) {
+          if (!appended) {
+            failed = true;
+            return;
+          }
+          offset = chunkOffset + read;
+        }
+      }
+    }
+  }
+
+  private void fail(Exception e) {
+    logger.warning("Failed to stream console output of instance " + instanceId + ", it'll be uploaded with the result: " + e.getMessage());
+    failed = true;
+  }
+}
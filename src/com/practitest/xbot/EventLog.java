@@ -0,0 +1,141 @@
+package com.practitest.xbot;
+
+import java.io.PrintWriter;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Recent runner events shown by <code>/log</code>.
+ * <p>
+ * Events go into a fixed ring without locks: a writer takes the next sequence number and stores its event
+ * in that ring position, replacing the oldest one. Messages are kept as references and only formatted
+ * when the log is rendered, which doesn't block writers. The memory kept by all messages (two bytes per
+ * character) is limited by a budget; the oldest events are dropped to stay within it.
+ */
+public class EventLog {
+  public enum Level {
+    INFO, WARNING, ERROR
+  }
+
+  private static final ThreadLocal<DateFormat> dateFormat = new ThreadLocal<DateFormat>() {
+    @Override
+    protected DateFormat initialValue() {
+      return DateFormat.getDateTimeInstance();
+    }
+  };
+
+  private final AtomicReferenceArray<Event> ring;
+  private final int mask;
+  private final long budget;
+  private final AtomicLong nextSequence = new AtomicLong();
+  // events below this sequence number were dropped for the budget
+  private final AtomicLong firstSequence = new AtomicLong();
+  private final AtomicLong retained = new AtomicLong();
+
+  /**
+   * @param capacity    number of events kept, rounded up to a power of two.
+   * @param budgetBytes memory kept by all the messages together.
+   */
+  public EventLog(int capacity, long budgetBytes) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    this.ring = new AtomicReferenceArray<Event>(size);
+    this.mask = size - 1;
+    this.budget = budgetBytes;
+  }
+
+  public void add(Level level, String slot, String message) {
+    add(level, slot, message, null);
+  }
+
+  /**
+   * @param detail rendered as <code>message: [detail]</code>, e.g. the console output of a task.
+   */
+  public void add(Level level, String slot, String message, String detail) {
+    long size = 2L * (message.length() + (detail == null ? 0 : detail.length()));
+    if (size > budget / 2 && detail != null) {
+      // one huge output shouldn't push out everything else
+      int keep = (int)Math.max(0, budget / 4 - message.length());
+      detail = detail.substring(0, Math.min(keep, detail.length())) + "<...>";
+      size = 2L * (message.length() + detail.length());
+    }
+    long sequence = nextSequence.getAndIncrement();
+    Event previous = ring.getAndSet((int)(sequence & mask), new Event(sequence, System.currentTimeMillis(), level, slot, message, detail, size));
+    if (previous != null) retained.addAndGet(-previous.size);
+    if (retained.addAndGet(size) > budget) trim(sequence);
+  }
+
+  private void trim(long newest) {
+    while (retained.get() > budget) {
+      long oldest = firstSequence.get();
+      if (oldest >= newest) return;
+      if (oldest < newest - mask) {
+        // positions before that were overwritten by the ring already
+        firstSequence.compareAndSet(oldest, newest - mask);
+        continue;
+      }
+      if (!firstSequence.compareAndSet(oldest, oldest + 1)) continue;
+      int index = (int)(oldest & mask);
+      Event event = ring.get(index);
+      // the position may hold a newer event already, it's accounted for by its writer
+      if (event != null && event.sequence == oldest && ring.compareAndSet(index, event, null))
+        retained.addAndGet(-event.size);
+    }
+  }
+
+  /**
+   * Writes the events, newest first, as HTML paragraphs.
+   */
+  public void render(PrintWriter out) {
+    long newest = nextSequence.get() - 1;
+    long oldest = Math.max(firstSequence.get(), newest - mask);
+    DateFormat format = dateFormat.get();
+    for (long sequence = newest; sequence >= oldest && sequence >= 0; --sequence) {
+      Event event = ring.get((int)(sequence & mask));
+      if (event == null || event.sequence != sequence) continue;
+      out.print("<p>");
+      out.print(format.format(new Date(event.timestamp)));
+      out.print(" :: ");
+      if (event.level != Level.INFO) {
+        out.print(event.level);
+        out.print(": ");
+      }
+      if (event.slot != null) {
+        out.print(escape(event.slot));
+        out.print(": ");
+      }
+      out.print(escape(event.message));
+      if (event.detail != null) {
+        out.print(": [");
+        out.print(escape(event.detail));
+        out.print("]");
+      }
+      out.println("</p>");
+    }
+  }
+
+  private static String escape(String text) {
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  private static class Event {
+    private final long sequence;
+    private final long timestamp;
+    private final Level level;
+    private final String slot;
+    private final String message;
+    private final String detail;
+    private final long size;
+
+    private Event(long sequence, long timestamp, Level level, String slot, String message, String detail, long size) {
+      this.sequence = sequence;
+      this.timestamp = timestamp;
+      this.level = level;
+      this.slot = slot;
+      this.message = message;
+      this.detail = detail;
+      this.size = size;
+    }
+  }
+}
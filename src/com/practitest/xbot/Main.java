@@ -1,6 +1,8 @@
 package com.practitest.xbot;
 
 import com.practitest.api.Client;
+import com.practitest.api.ConnectionPool;
+import com.practitest.api.Transport;
 import org.mortbay.jetty.Request;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.handler.AbstractHandler;
@@ -14,6 +16,7 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -22,14 +25,15 @@ import java.text.DateFormat;
 import java.util.*;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * @author stask.
@@ -48,15 +52,101 @@ public class Main {
   private static final String XBOT_TRAY_CAPTION = "PractiTest xBot";
 
   private static final int DEFAULT_LISTENING_PORT = 18080;
-  private static final int TEST_RUNNER_DELAY = 60;
   private static final int TEST_RUNNER_INITIAL_DELAY = 3;
-  private static final int MAX_TEST_RUNNER_LOG = 100;
+  private static final int POLL_TASK = 0;
+  private static final int POLL_EMPTY = 1;
+  private static final int POLL_FAILED = 2;
+  // exit codes -1 (no exit code), 0..255 and anything else
+  private static final String[] EXIT_CODE_LABELS = new String[258];
+  static {
+    EXIT_CODE_LABELS[0] = "-1";
+    for (int code = 0; code < 256; ++code) EXIT_CODE_LABELS[code + 1] = String.valueOf(code);
+    EXIT_CODE_LABELS[257] = "other";
+  }
+  private static final String LOG_EVENTS_SETTING = "log_events";
+  private static final int DEFAULT_LOG_EVENTS = 128;
+  private static final String LOG_BUDGET_SETTING = "log_budget_bytes";
+  private static final int DEFAULT_LOG_BUDGET = 1024 * 1024;
+
+  private static final String EXECUTION_SLOTS_SETTING = "execution_slots";
+  private static final int DEFAULT_EXECUTION_SLOTS = 1;
+  private static final String POLL_MIN_DELAY_SETTING = "poll_min_delay_ms";
+  private static final int DEFAULT_POLL_MIN_DELAY = 500;
+  private static final String POLL_MAX_DELAY_SETTING = "poll_max_delay_ms";
+  private static final int DEFAULT_POLL_MAX_DELAY = 60000;
+  private static final String POLL_JITTER_SETTING = "poll_jitter_percent";
+  private static final int DEFAULT_POLL_JITTER = 20;
+  private static final String PREFETCH_DEPTH_SETTING = "prefetch_depth";
+  private static final int DEFAULT_PREFETCH_DEPTH = 0;
+  private static final long PREFETCH_WAIT_MILLIS = 1000;
+  private static final long PREFETCH_STOP_TIMEOUT_MILLIS = 30000;
+  private static final String LEASE_BATCH_SIZE_SETTING = "lease_batch_size";
+  private static final int DEFAULT_LEASE_BATCH_SIZE = 1;
+  private static final String UPLOAD_QUEUE_SIZE_SETTING = "upload_queue_size";
+  private static final int DEFAULT_UPLOAD_QUEUE_SIZE = 10;
+  private static final String UPLOAD_WORKERS_SETTING = "upload_workers";
+  private static final int DEFAULT_UPLOAD_WORKERS = 1;
+  private static final long UPLOAD_WAIT_MILLIS = 1000;
+  private static final String RESULT_SPOOL_SETTING = "result_spool";
+  private static final String SPOOL_REPLAY_INTERVAL_SETTING = "spool_replay_interval_ms";
+  private static final int DEFAULT_SPOOL_REPLAY_INTERVAL = 60000;
+  private static final String CONSOLE_MEMORY_LIMIT_SETTING = "console_memory_limit_bytes";
+  private static final int DEFAULT_CONSOLE_MEMORY_LIMIT = 64 * 1024;
+  private static final String CONSOLE_SPILL_RETENTION_SETTING = "console_spill_retention";
+  private static final int DEFAULT_CONSOLE_SPILL_RETENTION = 20;
+  private static final long OUTPUT_DRAIN_TIMEOUT_MILLIS = 5000;
+  private static final String CONSOLE_STREAMING_SETTING = "console_streaming";
+  private static final String CONSOLE_STREAM_INTERVAL_SETTING = "console_stream_interval_ms";
+  private static final int DEFAULT_CONSOLE_STREAM_INTERVAL = 2000;
+  private static final String CONSOLE_STREAM_CHUNK_SETTING = "console_stream_chunk_bytes";
+  private static final int DEFAULT_CONSOLE_STREAM_CHUNK = 64 * 1024;
+  private static final String UPLOAD_COMPRESSION_SETTING = "upload_compression";
+  private static final String UPLOAD_BATCH_SIZE_SETTING = "upload_batch_size";
+  private static final int DEFAULT_UPLOAD_BATCH_SIZE = 1;
+  private static final String UPLOAD_BATCH_MAX_BYTES_SETTING = "upload_batch_max_bytes";
+  private static final int DEFAULT_UPLOAD_BATCH_MAX_BYTES = 10 * 1024 * 1024;
+  private static final String UPLOAD_BATCH_MAX_DELAY_SETTING = "upload_batch_max_delay_ms";
+  private static final int DEFAULT_UPLOAD_BATCH_MAX_DELAY = 2000;
+  private static final String CHUNKED_UPLOAD_THRESHOLD_SETTING = "chunked_upload_threshold_bytes";
+  private static final int DEFAULT_CHUNKED_UPLOAD_THRESHOLD = 64 * 1024 * 1024;
+  private static final String UPLOAD_CHUNK_SETTING = "upload_chunk_bytes";
+  private static final int DEFAULT_UPLOAD_CHUNK = 8 * 1024 * 1024;
+  private static final String DIGEST_CACHE_SETTING = "result_digest_cache_entries";
+  private static final int DEFAULT_DIGEST_CACHE = 4096;
+  private static final String RESULT_CAPTURE_SETTING = "result_capture";
+  private static final String RESULT_STABLE_SETTING = "result_stable_ms";
+  private static final int DEFAULT_RESULT_STABLE = 2000;
+  private static final String KILL_GRACE_PERIOD_SETTING = "kill_grace_period_ms";
+  private static final int DEFAULT_KILL_GRACE_PERIOD = 5000;
+  private static final String THREAD_MODE_SETTING = "thread_mode";
+  private static final String WORKER_COMMANDS_SETTING = "worker_commands";
+  private static final String BATCH_COMMANDS_SETTING = "batch_commands";
+  private static final String BATCH_MAX_SIZE_SETTING = "batch_max_size";
+  private static final int DEFAULT_BATCH_MAX_SIZE = 20;
+  // default: a connection for every slot and upload worker, the prefetcher and console streaming
+  private static final String HTTP_MAX_CONNECTIONS_PER_HOST_SETTING = "http_max_connections_per_host";
+  private static final String HTTP_MAX_CONNECTIONS_SETTING = "http_max_connections";
+  private static final int DEFAULT_HTTP_MAX_CONNECTIONS = 20;
+  private static final String HTTP_IDLE_TIMEOUT_SETTING = "http_idle_timeout_ms";
+  private static final int DEFAULT_HTTP_IDLE_TIMEOUT = 60000;
+  private static final String HTTP_TRANSPORT_SETTING = "http_transport";
+  private static final String GZIP_REQUESTS_SETTING = "gzip_requests";
+  private static final String BATCH_MANIFEST_ENVIRONMENT_VARIABLE = "XBOT_BATCH_MANIFEST";
+  private static final String BATCH_EXIT_CODES_ENVIRONMENT_VARIABLE = "XBOT_BATCH_EXIT_CODES";
+  private static final String WORKER_MAX_USES_SETTING = "worker_max_uses";
+  private static final int DEFAULT_WORKER_MAX_USES = 100;
+  private static final String WORKER_IDLE_TIMEOUT_SETTING = "worker_idle_timeout_ms";
+  private static final int DEFAULT_WORKER_IDLE_TIMEOUT = 5 * 60 * 1000;
 
   private static final Pattern PARAMETER_PARSER_PATTERN = Pattern.compile("[^\\s\"']+|\"([^\"]*)\"|'([^']*)'");
 
   private static final File SETTINGS_FILE = System.getProperty(SETTINGS_FILE_PROPERTY_KEY) != null ?
     new File(System.getProperty(SETTINGS_FILE_PROPERTY_KEY)) :
     new File(System.getProperty("user.dir"), "xbot.properties");
+  private static final File SPOOL_DIRECTORY = new File(SETTINGS_FILE.getAbsoluteFile().getParentFile(), "xbot-spool");
+  private static final File CONSOLE_SPILL_DIRECTORY = new File(System.getProperty("java.io.tmpdir"), "xbot-console");
+  private static final File PREFETCHED_TASKS_FILE = new File(SETTINGS_FILE.getAbsoluteFile().getParentFile(), "xbot.prefetched.properties");
+  private static final File UPLOAD_OFFSETS_FILE = new File(SETTINGS_FILE.getAbsoluteFile().getParentFile(), "xbot.uploads.properties");
 
   private Image trayIconImageReady;
   private Image trayIconImageRunning;
@@ -68,8 +158,82 @@ public class Main {
   private Condition exitCondition;
   private Server theServer;
   private AtomicReference<Client> theClient = new AtomicReference<Client>();
-  private ScheduledFuture<?> testRunner;
-  private final Deque<String> testRunnerLog = new LinkedList<String>();
+  private final List<ExecutionSlot> executionSlots = new CopyOnWriteArrayList<ExecutionSlot>();
+  private ScheduledExecutorService scheduler;
+  private TaskPrefetcher prefetcher;
+  private ResultUploader uploader;
+  private ResultSpool spool;
+  private ScheduledExecutorService spoolReplayer;
+  private ScheduledExecutorService consoleStreamExecutor;
+  // spill files of running tasks, they're never pruned
+  private final Set<File> activeSpillFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+  private final TaskWatchdog watchdog = new TaskWatchdog();
+  private WorkerPool workerPool;
+  private volatile boolean stopping = false;
+  private final CountDownLatch stopped = new CountDownLatch(1);
+  private EventLog eventLog = new EventLog(DEFAULT_LOG_EVENTS, DEFAULT_LOG_BUDGET);
+
+  private final Metrics metrics = new Metrics();
+  private final Metrics.Histogram pollDuration = metrics.histogram("xbot_poll_duration_seconds",
+          "Time the server took to answer a task poll");
+  private final Metrics.Counter polls = metrics.counter("xbot_polls_total", "Task polls by result",
+          "result", "task", "empty", "failed");
+  private final Metrics.Histogram taskDuration = metrics.histogram("xbot_task_duration_seconds",
+          "Run time of the test processes");
+  private final Metrics.Counter taskTimeouts = metrics.counter("xbot_task_timeouts_total",
+          "Test processes killed after their timeout");
+  private final Metrics.Counter taskExitCodes = metrics.counter("xbot_task_exit_codes_total",
+          "Finished test instances by exit code", "code", EXIT_CODE_LABELS);
+  private final Metrics.Histogram uploadDuration = metrics.histogram("xbot_upload_duration_seconds",
+          "Time taken by result upload requests");
+  private final Metrics.Counter uploadBytes = metrics.counter("xbot_upload_result_bytes_total",
+          "Size of the uploaded result files");
+  private final Metrics.Counter uploadFailures = metrics.counter("xbot_upload_failures_total",
+          "Result upload requests that failed");
+
+  private final Properties settings = new Properties();
+  private int numOfExecutionSlots = DEFAULT_EXECUTION_SLOTS;
+  private int pollMinDelay = DEFAULT_POLL_MIN_DELAY;
+  private int pollMaxDelay = DEFAULT_POLL_MAX_DELAY;
+  private int pollJitter = DEFAULT_POLL_JITTER;
+  private int prefetchDepth = DEFAULT_PREFETCH_DEPTH;
+  private int leaseBatchSize = DEFAULT_LEASE_BATCH_SIZE;
+  private int uploadQueueSize = DEFAULT_UPLOAD_QUEUE_SIZE;
+  private int numOfUploadWorkers = DEFAULT_UPLOAD_WORKERS;
+  private boolean resultSpoolEnabled = true;
+  private int spoolReplayInterval = DEFAULT_SPOOL_REPLAY_INTERVAL;
+  private int consoleMemoryLimit = DEFAULT_CONSOLE_MEMORY_LIMIT;
+  private int consoleSpillRetention = DEFAULT_CONSOLE_SPILL_RETENTION;
+  private boolean consoleStreaming = false;
+  private int consoleStreamInterval = DEFAULT_CONSOLE_STREAM_INTERVAL;
+  private int consoleStreamChunk = DEFAULT_CONSOLE_STREAM_CHUNK;
+  private Client.ResultCompression uploadCompression = Client.ResultCompression.NONE;
+  private int uploadBatchSize = DEFAULT_UPLOAD_BATCH_SIZE;
+  private int uploadBatchMaxBytes = DEFAULT_UPLOAD_BATCH_MAX_BYTES;
+  private int uploadBatchMaxDelay = DEFAULT_UPLOAD_BATCH_MAX_DELAY;
+  private int chunkedUploadThreshold = DEFAULT_CHUNKED_UPLOAD_THRESHOLD;
+  private int uploadChunk = DEFAULT_UPLOAD_CHUNK;
+  private int digestCacheEntries = DEFAULT_DIGEST_CACHE;
+  private boolean watchResultFiles = false;
+  private int resultStableDelay = DEFAULT_RESULT_STABLE;
+  private int killGracePeriod = DEFAULT_KILL_GRACE_PERIOD;
+  private BlockingThreads threads = BlockingThreads.platform();
+  private Pattern workerCommands = null;
+  private int workerMaxUses = DEFAULT_WORKER_MAX_USES;
+  private int workerIdleTimeout = DEFAULT_WORKER_IDLE_TIMEOUT;
+  private Pattern batchCommands = null;
+  private int batchMaxSize = DEFAULT_BATCH_MAX_SIZE;
+  private int httpMaxConnectionsPerHost = DEFAULT_EXECUTION_SLOTS + DEFAULT_UPLOAD_WORKERS + 2;
+  private int httpMaxConnections = DEFAULT_HTTP_MAX_CONNECTIONS;
+  private int httpIdleTimeout = DEFAULT_HTTP_IDLE_TIMEOUT;
+  private volatile ConnectionPool connectionPool;
+  private boolean http2 = false;
+  private boolean gzipRequests = false;
+  // totals of every client, one is created whenever the settings change
+  private final AtomicLong gzipUncompressedBytes = new AtomicLong();
+  private final AtomicLong gzipCompressedBytes = new AtomicLong();
+  private Transport http2Transport;
+  private String http2TransportProxy;
 
   private String apiToken = "";
   private String serverURL = "";
@@ -81,6 +245,7 @@ public class Main {
 
   public Main(int listeningPort, boolean noTrayIcon) throws Exception {
     logger.info("Running v" + VERSION);
+    registerGauges();
     if (listeningPort > 0) {
       loadSettings();
       this.listeningPort = listeningPort;
@@ -104,6 +269,11 @@ public class Main {
           } finally {
             lock.unlock();
           }
+          // let run() finish the running tasks and save the prefetched ones before the JVM halts
+          try {
+            stopped.await();
+          } catch (InterruptedException ignored) {
+          }
         }
       }));
     } // else -- running from test
@@ -126,15 +296,33 @@ public class Main {
       logger.severe("Failed to stop internal http server: " + e.getMessage());
     }
     logger.info("Stopped internal http server.");
-    testRunner.cancel(false);
-    // wait for completion of current task
+    stopping = true;
+    prefetcher.stop();
+    // pending polls are dropped, running ones stop after the current task
+    scheduler.shutdown();
+    // wait for completion of current tasks
     try {
-      testRunner.get();
+      scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
     } catch (InterruptedException ignored) {
-    } catch (CancellationException ignored) {
-    } catch (ExecutionException e) {
-      logger.severe("Failed to execute test: " + e.getMessage());
     }
+    if (workerPool != null) workerPool.shutdown();
+    watchdog.shutdown();
+    // the finished tasks have closed their console streams
+    if (consoleStreamExecutor != null) consoleStreamExecutor.shutdownNow();
+    // leased tasks that didn't get a slot are kept for the next start
+    prefetcher.saveRemainingTasks();
+    // results of the finished tasks are still being uploaded
+    if (spoolReplayer != null) spoolReplayer.shutdownNow();
+    uploader.stop();
+    if (spool != null) {
+      try {
+        spool.close();
+      } catch (IOException e) {
+        logger.severe("Failed to close result spool: " + e.getMessage());
+      }
+    }
+    if (connectionPool != null) connectionPool.shutdown();
+    stopped.countDown();
     System.exit(0);
   }
 
@@ -150,7 +338,6 @@ public class Main {
     logger.info("Loading settings from [" + SETTINGS_FILE.getAbsolutePath() + "]");
     if (SETTINGS_FILE.exists()) {
       try {
-        Properties settings = new Properties();
         settings.load(new FileReader(SETTINGS_FILE));
         serverURL = settings.getProperty("server_url", "").trim();
         if(serverURL.equals("")){
@@ -163,6 +350,61 @@ public class Main {
         proxyPort = settings.getProperty("proxy_port", "").trim();
         proxyUser = settings.getProperty("proxy_user", "").trim();
         proxyPassword = settings.getProperty("proxy_password", "").trim();
+        numOfExecutionSlots = getIntSetting(EXECUTION_SLOTS_SETTING, DEFAULT_EXECUTION_SLOTS, 1);
+        pollMinDelay = getIntSetting(POLL_MIN_DELAY_SETTING, DEFAULT_POLL_MIN_DELAY, 1);
+        pollMaxDelay = getIntSetting(POLL_MAX_DELAY_SETTING, DEFAULT_POLL_MAX_DELAY, pollMinDelay);
+        pollJitter = getIntSetting(POLL_JITTER_SETTING, DEFAULT_POLL_JITTER, 0);
+        prefetchDepth = getIntSetting(PREFETCH_DEPTH_SETTING, DEFAULT_PREFETCH_DEPTH, 0);
+        leaseBatchSize = getIntSetting(LEASE_BATCH_SIZE_SETTING, DEFAULT_LEASE_BATCH_SIZE, 1);
+        uploadQueueSize = getIntSetting(UPLOAD_QUEUE_SIZE_SETTING, DEFAULT_UPLOAD_QUEUE_SIZE, 1);
+        numOfUploadWorkers = getIntSetting(UPLOAD_WORKERS_SETTING, DEFAULT_UPLOAD_WORKERS, 1);
+        resultSpoolEnabled = Boolean.parseBoolean(settings.getProperty(RESULT_SPOOL_SETTING, "true").trim());
+        spoolReplayInterval = getIntSetting(SPOOL_REPLAY_INTERVAL_SETTING, DEFAULT_SPOOL_REPLAY_INTERVAL, 1000);
+        consoleMemoryLimit = getIntSetting(CONSOLE_MEMORY_LIMIT_SETTING, DEFAULT_CONSOLE_MEMORY_LIMIT, 1024);
+        consoleSpillRetention = getIntSetting(CONSOLE_SPILL_RETENTION_SETTING, DEFAULT_CONSOLE_SPILL_RETENTION, 0);
+        consoleStreaming = Boolean.parseBoolean(settings.getProperty(CONSOLE_STREAMING_SETTING, "false").trim());
+        consoleStreamInterval = getIntSetting(CONSOLE_STREAM_INTERVAL_SETTING, DEFAULT_CONSOLE_STREAM_INTERVAL, 100);
+        consoleStreamChunk = getIntSetting(CONSOLE_STREAM_CHUNK_SETTING, DEFAULT_CONSOLE_STREAM_CHUNK, 1024);
+        try {
+          uploadCompression = Client.ResultCompression.valueOf(
+                  settings.getProperty(UPLOAD_COMPRESSION_SETTING, "none").trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+          logger.warning("Invalid value for setting " + UPLOAD_COMPRESSION_SETTING + ", uploading files uncompressed");
+        }
+        uploadBatchSize = getIntSetting(UPLOAD_BATCH_SIZE_SETTING, DEFAULT_UPLOAD_BATCH_SIZE, 1);
+        uploadBatchMaxBytes = getIntSetting(UPLOAD_BATCH_MAX_BYTES_SETTING, DEFAULT_UPLOAD_BATCH_MAX_BYTES, 0);
+        uploadBatchMaxDelay = getIntSetting(UPLOAD_BATCH_MAX_DELAY_SETTING, DEFAULT_UPLOAD_BATCH_MAX_DELAY, 0);
+        chunkedUploadThreshold = getIntSetting(CHUNKED_UPLOAD_THRESHOLD_SETTING, DEFAULT_CHUNKED_UPLOAD_THRESHOLD, 0);
+        uploadChunk = getIntSetting(UPLOAD_CHUNK_SETTING, DEFAULT_UPLOAD_CHUNK, 64 * 1024);
+        digestCacheEntries = getIntSetting(DIGEST_CACHE_SETTING, DEFAULT_DIGEST_CACHE, 0);
+        watchResultFiles = "watch".equalsIgnoreCase(settings.getProperty(RESULT_CAPTURE_SETTING, "scan").trim());
+        resultStableDelay = getIntSetting(RESULT_STABLE_SETTING, DEFAULT_RESULT_STABLE, 100);
+        killGracePeriod = getIntSetting(KILL_GRACE_PERIOD_SETTING, DEFAULT_KILL_GRACE_PERIOD, 0);
+        threads = "virtual".equalsIgnoreCase(settings.getProperty(THREAD_MODE_SETTING, "platform").trim()) ?
+                BlockingThreads.virtual() : BlockingThreads.platform();
+        String workerCommandsPattern = settings.getProperty(WORKER_COMMANDS_SETTING, "").trim();
+        try {
+          workerCommands = workerCommandsPattern.isEmpty() ? null : Pattern.compile(workerCommandsPattern);
+        } catch (PatternSyntaxException e) {
+          logger.warning("Invalid value for setting " + WORKER_COMMANDS_SETTING + ", workers are off: " + e.getMessage());
+        }
+        workerMaxUses = getIntSetting(WORKER_MAX_USES_SETTING, DEFAULT_WORKER_MAX_USES, 1);
+        workerIdleTimeout = getIntSetting(WORKER_IDLE_TIMEOUT_SETTING, DEFAULT_WORKER_IDLE_TIMEOUT, 1000);
+        String batchCommandsPattern = settings.getProperty(BATCH_COMMANDS_SETTING, "").trim();
+        try {
+          batchCommands = batchCommandsPattern.isEmpty() ? null : Pattern.compile(batchCommandsPattern);
+        } catch (PatternSyntaxException e) {
+          logger.warning("Invalid value for setting " + BATCH_COMMANDS_SETTING + ", batch runs are off: " + e.getMessage());
+        }
+        batchMaxSize = getIntSetting(BATCH_MAX_SIZE_SETTING, DEFAULT_BATCH_MAX_SIZE, 1);
+        httpMaxConnectionsPerHost = getIntSetting(HTTP_MAX_CONNECTIONS_PER_HOST_SETTING,
+                numOfExecutionSlots + numOfUploadWorkers + 2, 1);
+        httpMaxConnections = getIntSetting(HTTP_MAX_CONNECTIONS_SETTING, DEFAULT_HTTP_MAX_CONNECTIONS, 1);
+        httpIdleTimeout = getIntSetting(HTTP_IDLE_TIMEOUT_SETTING, DEFAULT_HTTP_IDLE_TIMEOUT, 1000);
+        http2 = "http2".equalsIgnoreCase(settings.getProperty(HTTP_TRANSPORT_SETTING, "http1").trim());
+        gzipRequests = Boolean.parseBoolean(settings.getProperty(GZIP_REQUESTS_SETTING, "false").trim());
+        eventLog = new EventLog(getIntSetting(LOG_EVENTS_SETTING, DEFAULT_LOG_EVENTS, 2),
+                getIntSetting(LOG_BUDGET_SETTING, DEFAULT_LOG_BUDGET, 1024));
       } catch (IOException e) {
         logger.severe("Failed to load settings: " + e.getMessage());
       }
@@ -173,10 +415,21 @@ public class Main {
     }
   }
 
+  private int getIntSetting(String key, int defaultValue, int minValue) {
+    String value = settings.getProperty(key, "").trim();
+    if (value.isEmpty()) return defaultValue;
+    try {
+      int result = Integer.parseInt(value);
+      if (result >= minValue) return result;
+    } catch (NumberFormatException ignored) {
+    }
+    logger.warning("Invalid value [" + value + "] for setting " + key + ", using " + defaultValue);
+    return defaultValue;
+  }
+
   private void saveSettings() {
-    // overwrites the xbot.properties!
+    // overwrites the xbot.properties! (tuning settings that were loaded from it are preserved)
     logger.info("Saving settings to [" + SETTINGS_FILE.getAbsolutePath() + "]");
-    Properties settings = new Properties();
     settings.setProperty("server_url", serverURL);
     settings.setProperty("api_key", apiToken);
     settings.setProperty("client_id", clientId);
@@ -204,6 +457,11 @@ public class Main {
           response.setStatus(HttpServletResponse.SC_OK);
           response.getWriter().println("OK");
           ((Request) request).setHandled(true);
+        } else if (target.equals("/metrics")) {
+          response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+          response.setStatus(HttpServletResponse.SC_OK);
+          metrics.render(response.getWriter());
+          ((Request) request).setHandled(true);
         } else if (target.equals("/preferences")) {
           response.setContentType("text/html");
           response.setStatus(HttpServletResponse.SC_OK);
@@ -278,14 +536,29 @@ public class Main {
           response.setStatus(HttpServletResponse.SC_OK);
           PrintWriter out = response.getWriter();
           out.println("<html><head><meta http-equiv=\"refresh\" content=\"5\" /><title>PractiTest xBot log</title></head>");
-          out.println("<body><h1>PractiTest xBot v" + VERSION + " log</h1><div>");
-          synchronized (testRunnerLog) {
-            for (String message : testRunnerLog) {
-              out.println("<p>");
-              out.println(message);
-              out.println("</p>");
-            }
+          out.println("<body><h1>PractiTest xBot v" + VERSION + " log</h1>");
+          out.println("<table border=\"1\" cellpadding=\"4\"><tr><th>Slot</th><th>State</th><th>Task</th><th>Since</th></tr>");
+          for (ExecutionSlot slot : executionSlots) {
+            out.println("<tr><td>" + slot.getName() + "</td><td>" + slot.getState() + "</td><td>" +
+                    (slot.getTaskName() == null ? "" : slot.getTaskName()) + "</td><td>" +
+                    DateFormat.getDateTimeInstance().format(new Date(slot.getStateChangedAt())) + "</td></tr>");
           }
+          out.println("</table>");
+          if (prefetcher != null)
+            out.println("<p>Prefetched tasks: " + prefetcher.getNumOfQueuedTasks() + " (prefetch depth " + prefetcher.getDepth() +
+                    ", lease batch size " + leaseBatchSize + ")</p>");
+          if (uploader != null)
+            out.println("<p>" + uploader.describe() + "</p>");
+          if (spool != null)
+            out.println("<p>Spooled results waiting for upload: " + spool.getNumOfPendingEntries() + "</p>");
+          Client client = theClient.get();
+          if (client != null)
+            out.println("<p>" + client.getTransport().describe() + "</p>");
+          if (gzipUncompressedBytes.get() > 0)
+            out.println("<p>Gzip'ed polls and request bodies: " + gzipUncompressedBytes.get() +
+                    " bytes transferred as " + gzipCompressedBytes.get() + " bytes</p>");
+          out.println("<div>");
+          eventLog.render(out);
           out.println("</div></body></html>");
           ((Request) request).setHandled(true);
         }
@@ -294,6 +567,93 @@ public class Main {
     theServer.start();
   }
 
+  private void registerGauges() {
+    metrics.gauge("xbot_busy_slots", "Execution slots running a test", new Metrics.Gauge() {
+      public double value() {
+        int busy = 0;
+        for (ExecutionSlot slot : executionSlots) {
+          if (slot.getState() == SlotState.RUNNING) ++busy;
+        }
+        return busy;
+      }
+    });
+    metrics.gauge("xbot_prefetched_tasks", "Leased tasks waiting for an execution slot", new Metrics.Gauge() {
+      public double value() {
+        return prefetcher == null ? 0 : prefetcher.getNumOfQueuedTasks();
+      }
+    });
+    metrics.gauge("xbot_upload_queue_length", "Test results waiting for an upload worker", new Metrics.Gauge() {
+      public double value() {
+        return uploader == null ? 0 : uploader.getNumOfQueuedJobs();
+      }
+    });
+    metrics.gauge("xbot_spooled_results", "Spooled test results that weren't uploaded yet", new Metrics.Gauge() {
+      public double value() {
+        return spool == null ? 0 : spool.getNumOfPendingEntries();
+      }
+    });
+    metrics.gauge("xbot_idle_workers", "Idle worker processes", new Metrics.Gauge() {
+      public double value() {
+        return workerPool == null ? 0 : workerPool.getNumOfIdleWorkers();
+      }
+    });
+    metrics.gauge("xbot_http_connections", "Open HTTP connections to the server", new Metrics.Gauge() {
+      public double value() {
+        return connectionPool == null ? 0 : connectionPool.getNumOfConnections();
+      }
+    });
+    metrics.gauge("xbot_http_requests", "HTTP requests sent through the current connection pool", new Metrics.Gauge() {
+      public double value() {
+        return connectionPool == null ? 0 : connectionPool.getNumOfRequests();
+      }
+    });
+    metrics.gauge("xbot_http_new_connections", "HTTP connections opened by the current connection pool", new Metrics.Gauge() {
+      public double value() {
+        return connectionPool == null ? 0 : connectionPool.getNumOfNewConnections();
+      }
+    });
+    metrics.counter("xbot_http_gzip_uncompressed_bytes_total", "Size of the gzip'ed responses and request bodies, uncompressed", new Metrics.Gauge() {
+      public double value() {
+        return gzipUncompressedBytes.get();
+      }
+    });
+    metrics.counter("xbot_http_gzip_compressed_bytes_total", "Size of the gzip'ed responses and request bodies, as transferred", new Metrics.Gauge() {
+      public double value() {
+        return gzipCompressedBytes.get();
+      }
+    });
+    metrics.gauge("jvm_memory_heap_used_bytes", "Used heap memory", new Metrics.Gauge() {
+      public double value() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+      }
+    });
+    metrics.gauge("jvm_memory_heap_committed_bytes", "Committed heap memory", new Metrics.Gauge() {
+      public double value() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getCommitted();
+      }
+    });
+    metrics.gauge("jvm_memory_heap_max_bytes", "Maximum heap memory, -1 when undefined", new Metrics.Gauge() {
+      public double value() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+      }
+    });
+    metrics.gauge("jvm_threads_current", "Live threads", new Metrics.Gauge() {
+      public double value() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+      }
+    });
+    metrics.gauge("jvm_threads_daemon", "Live daemon threads", new Metrics.Gauge() {
+      public double value() {
+        return ManagementFactory.getThreadMXBean().getDaemonThreadCount();
+      }
+    });
+  }
+
+  private static int exitCodeIndex(int exitCode) {
+    if (exitCode == -1) return 0;
+    return exitCode >= 0 && exitCode < 256 ? exitCode + 1 : 257;
+  }
+
   private void initializeTrayIcon() {
     if (SystemTray.isSupported()) {
       SystemTray tray = SystemTray.getSystemTray();
@@ -364,92 +724,259 @@ public class Main {
   private void initializeClient() {
     theClient.set(null);
     if (serverURL.isEmpty() || apiToken.isEmpty() || clientId.isEmpty()) return;
-    theClient.set(new Client(serverURL, apiToken, clientId, proxyHost, proxyPort, proxyUser, proxyPassword, VERSION));
+    Client client = new Client(serverURL, apiToken, clientId, proxyHost, proxyPort, proxyUser, proxyPassword, VERSION);
+    client.setConnectionPool(getConnectionPool());
+    Transport transport = http2 ? getHttp2Transport() : null;
+    if (transport != null) client.setTransport(transport);
+    client.setResultCompression(uploadCompression);
+    client.setChunkedUpload(chunkedUploadThreshold, uploadChunk, UPLOAD_OFFSETS_FILE);
+    client.setResultDeduplication(digestCacheEntries);
+    client.setGzipRequests(gzipRequests);
+    client.setTransferCounters(gzipUncompressedBytes, gzipCompressedBytes);
+    theClient.set(client);
     setTrayStatus(trayIconImageReady, "PractiTest xBot is ready",
             TrayIcon.MessageType.INFO);
   }
 
+  /**
+   * @return the current pool when it's for the same server and proxy, so its connections are kept.
+   */
+  private ConnectionPool getConnectionPool() {
+    ConnectionPool pool = connectionPool;
+    if (pool != null && pool.isFor(serverURL, proxyHost, proxyPort, proxyUser, proxyPassword)) {
+      pool.setLimits(httpMaxConnectionsPerHost, httpMaxConnections, httpIdleTimeout);
+      return pool;
+    }
+    if (pool != null) {
+      logger.info("Server or proxy changed, closing " + pool.getNumOfConnections() + " HTTP connection(s)");
+      pool.shutdown();
+    }
+    pool = new ConnectionPool(serverURL, proxyHost, proxyPort, proxyUser, proxyPassword,
+            httpMaxConnectionsPerHost, httpMaxConnections, httpIdleTimeout);
+    connectionPool = pool;
+    return pool;
+  }
+
+  /**
+   * @return the current HTTP/2 transport when it's for the same proxy, null when it isn't available.
+   */
+  private Transport getHttp2Transport() {
+    String proxy = proxyHost + "|" + proxyPort + "|" + proxyUser + "|" + proxyPassword;
+    if (http2Transport == null || !proxy.equals(http2TransportProxy)) {
+      http2Transport = Client.createHttp2Transport(proxyHost, proxyPort, proxyUser, proxyPassword);
+      http2TransportProxy = proxy;
+      if (http2Transport == null)
+        addTestRunnerLog(EventLog.Level.WARNING, "HTTP/2 transport isn't available, using HTTP/1.1");
+    }
+    return http2Transport;
+  }
+
   private void initializeScheduler() {
-    final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-    testRunner = scheduler.scheduleWithFixedDelay(new Runnable() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(numOfExecutionSlots,
+            threads.factory("Execution slot"));
+    // polls that are still waiting for their turn are dropped on shutdown
+    executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    scheduler = executor;
+    uploader = new ResultUploader(uploadQueueSize, numOfUploadWorkers);
+    uploader.start();
+    if (workerCommands != null)
+      workerPool = new WorkerPool(workerCommands, workerMaxUses, workerIdleTimeout, watchdog);
+    initializeSpool();
+    if (consoleStreaming) {
+      if (consoleSpillRetention == 0)
+        logger.warning("Console streaming needs console spill files (console_spill_retention > 0), it is off");
+      else
+        // a slow append of one test doesn't hold back the streams of the others
+        consoleStreamExecutor = Executors.newScheduledThreadPool(numOfExecutionSlots, threads.factory("Console streamer"));
+    }
+    // slots work from the local queue of leased tasks when leasing in batches
+    prefetcher = new TaskPrefetcher(Math.max(prefetchDepth, leaseBatchSize > 1 ? leaseBatchSize : 0), leaseBatchSize);
+    prefetcher.loadSavedTasks();
+    prefetcher.start();
+    String threadMode = threads.isVirtual() ? "virtual" : "platform";
+    logger.info("Starting " + numOfExecutionSlots + " execution slot(s) on " + threadMode + " threads");
+    addTestRunnerLog("Starting " + numOfExecutionSlots + " execution slot(s) on " + threadMode + " threads");
+    for (int i = 0; i < numOfExecutionSlots; ++i) {
+      ExecutionSlot slot = new ExecutionSlot(i + 1);
+      executionSlots.add(slot);
+      // stagger the slots, so they don't poll the server at the same moment
+      slot.schedule((TEST_RUNNER_INITIAL_DELAY + i) * 1000L);
+    }
+  }
+
+  private void initializeSpool() {
+    if (!resultSpoolEnabled) return;
+    try {
+      ResultSpool resultSpool = new ResultSpool(SPOOL_DIRECTORY);
+      resultSpool.open();
+      spool = resultSpool;
+    } catch (IOException e) {
+      errorDisplay(e.getMessage(), "Failed to open result spool, results won't survive upload failures: ");
+      return;
+    }
+    if (spool.getNumOfPendingEntries() > 0)
+      addTestRunnerLog("Found " + spool.getNumOfPendingEntries() + " spooled result(s) from the previous run");
+    spoolReplayer = Executors.newSingleThreadScheduledExecutor(threads.factory("Spool replayer"));
+    spoolReplayer.scheduleWithFixedDelay(new Runnable() {
       public void run() {
-        logger.info("TestRunner is awake");
-        addTestRunnerLog("TestRunner is awake getting next test to run");
-        Client client = theClient.get();
-        if (client != null) {
-          while (runScript(client)) ;
-        } else { // client is null
-          logger.warning("PractiTest client is not yet configured");
-          addTestRunnerLog("PractiTest client is not yet configured");
+        try {
+          for (ResultSpool.Entry entry : spool.takeForReplay()) {
+            addTestRunnerLog("Replaying spooled result of [" + entry.getTaskName() + "]");
+            uploader.submit(new UploadJob(entry.getTaskName(), entry.getResult(), entry), null);
+          }
+        } catch (InterruptedException ignored) {
+          // shutting down, the entries are replayed on the next start
         }
-        logger.info("TestRunner finished, going to sleep.");
-        addTestRunnerLog("TestRunner finished, going to sleep.");
       }
-    }, TEST_RUNNER_INITIAL_DELAY, TEST_RUNNER_DELAY, TimeUnit.SECONDS);
+    }, 0, spoolReplayInterval, TimeUnit.MILLISECONDS);
+  }
+
+  private UploadJob spool(ExecutionSlot slot, String taskName, Client.TaskResult result) {
+    if (spool != null) {
+      try {
+        ResultSpool.Entry entry = spool.add(taskName, result, theClient.get());
+        return new UploadJob(taskName, entry.getResult(), entry);
+      } catch (IOException e) {
+        errorDisplay(e.getMessage(), slot.getName() + ": Failed to spool test results, uploading them directly: ");
+      }
+    }
+    return new UploadJob(taskName, result, null);
   }
 
-  private boolean runScript(Client client) {
+  private PollOutcome runScript(ExecutionSlot slot, Client client) {
     try {
-      Client.Task task = client.nextTask();
+      Client.Task task = nextTask(slot, client);
       if (task == null) {
-        addTestRunnerLog("There is no test to run in the queue");
+        slot.setState(SlotState.IDLE, null);
+        slot.log("There is no test to run in the queue");
         setTrayStatus(trayIconImageReady, "PractiTest xBot is ready",
                 TrayIcon.MessageType.INFO);
-        return false;
+        return PollOutcome.QUEUE_EMPTY;
       }
-      String taskName = task.getDescription() + " [" + task.getPathToTestApplication() + "]";
-      addTestRunnerLog("Running " + taskName);
+      List<Client.Task> batch = takeBatch(task);
+      String taskName = task.getDescription() + " [" + task.getPathToTestApplication() + "]" +
+              (batch.size() > 1 ? " and " + (batch.size() - 1) + " more instance(s)" : "");
+      slot.setState(SlotState.RUNNING, taskName);
+      slot.log("Running " + taskName);
       setTrayStatus(trayIconImageRunning, "PractiTest xBot is running: " + taskName,
               TrayIcon.MessageType.INFO);
 
-      TaskRunner taskRunner = new TaskRunner(task);
-      Thread taskRunnerThread = new Thread(taskRunner);
-      taskRunnerThread.setDaemon(true);
+      TaskRunner taskRunner = new TaskRunner(task, batch);
+      Thread taskRunnerThread = threads.newThread(taskRunner, slot.getName() + " task runner");
+      long startedAt = System.currentTimeMillis();
       taskRunnerThread.start();
       taskRunnerThread.join();
-      if (taskRunner.isTimedOut())
-        addTestRunnerLog("Task [" + taskName + "] timed out");
-      else
-        addTestRunnerLog("Task [" + taskName + "] finished with exit code " + taskRunner.getExitCode());
-      addTestRunnerLog("Task [" + taskName + "] output: [" + taskRunner.getOutput() + "]");
-      addTestRunnerLog("Uploading test results..." +
-              (taskRunner.getResultFiles() == null ?
-                      "[no result files]" :
-                      taskRunner.getResultFiles().toString()));
-      String uploadedTo = client.uploadResult(
-              new Client.TaskResult(
-                      task.getInstanceId(),
-                      taskRunner.getExitCode(),
-                      taskRunner.getResultFiles(),
-                      taskRunner.getOutput()));
-      addTestRunnerLog("Finished uploading test results [" + uploadedTo + "].");
+      taskDuration.record(System.currentTimeMillis() - startedAt);
+      if (taskRunner.isTimedOut()) {
+        taskTimeouts.increment();
+        slot.log("Task [" + taskName + "] timed out");
+      } else
+        slot.log("Task [" + taskName + "] finished with exit code " + taskRunner.getExitCode());
+      for (Client.Task batchTask : batch)
+        taskExitCodes.increment(exitCodeIndex(taskRunner.getExitCode(batchTask)));
+      slot.log("Task [" + taskName + "] output", taskRunner.getOutput());
+      if (taskRunner.getOutputFile() != null)
+        slot.log("Task [" + taskName + "] full console output (" + taskRunner.getOutputSize() + " bytes): " +
+                taskRunner.getOutputFile().getAbsolutePath());
+      slot.setState(SlotState.QUEUEING_UPLOAD, taskName);
+      for (Client.Task batchTask : batch) {
+        // the console output is streamed to the first instance only
+        uploader.submit(spool(slot, batchTask.getDescription() + " [" + batchTask.getPathToTestApplication() + "]",
+                new Client.TaskResult(
+                        batchTask.getInstanceId(),
+                        taskRunner.getExitCode(batchTask),
+                        taskRunner.getResultFiles(batchTask),
+                        taskRunner.getOutput(),
+                        batchTask == task ? taskRunner.getStreamedOutputBytes() : -1)), slot);
+      }
+      slot.setState(SlotState.IDLE, null);
       setTrayStatus(trayIconImageReady, "PractiTest xBot finished running task, ready for the next one", TrayIcon.MessageType.INFO);
+      return PollOutcome.TASK_COMPLETED;
     } catch (IOException e) {
+      slot.setState(SlotState.ERROR, null);
       errorDisplay(e.getMessage(), null);
     } catch (NoSuchAlgorithmException e) {
+      slot.setState(SlotState.ERROR, null);
       errorDisplay(e.getMessage(), null);
     } catch (ParserConfigurationException e) {
+      slot.setState(SlotState.ERROR, null);
       errorDisplay(e.getMessage(), null);
     } catch (SAXException e) {
+      slot.setState(SlotState.ERROR, null);
       errorDisplay(e.getMessage(), null);
     } catch (Client.APIException e) {
-      errorDisplay(e.getMessage(), "APIException: ");
+      slot.setState(SlotState.ERROR, null);
+      errorDisplay(e.getMessage(), slot.getName() + ": APIException: ");
     } catch (Throwable e) {
-      errorDisplay(e.getMessage(), "Unhandled exception: ");
+      slot.setState(SlotState.ERROR, null);
+      errorDisplay(e.getMessage(), slot.getName() + ": Unhandled exception: ");
+    }
+    return PollOutcome.FAILED;
+  }
+
+  /**
+   * @return the task and the prefetched tasks with the same command line when it's run in batches.
+   */
+  private List<Client.Task> takeBatch(Client.Task task) {
+    List<Client.Task> batch = new ArrayList<Client.Task>();
+    batch.add(task);
+    if (batchCommands != null && batchMaxSize > 1 && batchCommands.matcher(task.getPathToTestApplication()).matches())
+      batch.addAll(prefetcher.pollMatching(task.getPathToTestApplication(), batchMaxSize - 1));
+    return batch;
+  }
+
+  private Client.Task nextTask(ExecutionSlot slot, Client client) throws Exception {
+    Client.Task task = prefetcher.poll();
+    if (task != null) return task;
+    if (prefetcher.isEnabled()) {
+      slot.setState(SlotState.WAITING, null);
+      return prefetcher.take();
+    }
+    slot.setState(SlotState.POLLING, null);
+    long startedAt = System.nanoTime();
+    try {
+      task = client.nextTask();
+      polls.increment(task == null ? POLL_EMPTY : POLL_TASK);
+      return task;
+    } catch (Exception e) {
+      polls.increment(POLL_FAILED);
+      throw e;
+    } finally {
+      pollDuration.record((System.nanoTime() - startedAt) / 1000000);
     }
-    return true;
   }
 
   private void setTrayStatus(Image image, String message, TrayIcon.MessageType messageType) {
     try {
       if (trayIcon != null) {
+        // with several slots, one finished task doesn't mean the xBot is idle
+        if (image == trayIconImageReady && isAnySlotRunning())
+          image = trayIconImageRunning;
         trayIcon.setImage(image);
+        trayIcon.setToolTip(describeSlots());
         trayIcon.displayMessage(XBOT_TRAY_CAPTION, message, messageType);
       }
     } catch (Throwable ignore) {
     }
   }
 
+  private boolean isAnySlotRunning() {
+    for (ExecutionSlot slot : executionSlots) {
+      if (slot.getState() == SlotState.RUNNING) return true;
+    }
+    return false;
+  }
+
+  private String describeSlots() {
+    StringBuilder sb = new StringBuilder(XBOT_TRAY_CAPTION);
+    for (ExecutionSlot slot : executionSlots) {
+      sb.append('\n').append(slot.getName()).append(": ").append(slot.getState());
+      if (slot.getTaskName() != null)
+        sb.append(" - ").append(slot.getTaskName());
+    }
+    return sb.toString();
+  }
+
   private void errorDisplay(String message, String error_prefix) {
     setTrayStatus(trayIconImageError, "PractiTest xBot failed to run task: " + message,
             TrayIcon.MessageType.ERROR);
@@ -457,18 +984,15 @@ public class Main {
     if (error_prefix == null)
       error_prefix = "Error occurred during communication with PractiTest server: ";
     logger.severe(error_prefix + message);
-    addTestRunnerLog(error_prefix + message);
+    eventLog.add(EventLog.Level.ERROR, null, error_prefix + message);
   }
 
   private void addTestRunnerLog(String message) {
-    synchronized (testRunnerLog) {
-      StringBuilder sb = new StringBuilder();
-      sb.append(DateFormat.getDateTimeInstance().format(new Date())).append(" :: ").append(message);
-      testRunnerLog.addFirst(sb.toString());
-      if (testRunnerLog.size() > MAX_TEST_RUNNER_LOG) {
-        testRunnerLog.removeLast();
-      }
-    }
+    eventLog.add(EventLog.Level.INFO, null, message);
+  }
+
+  private void addTestRunnerLog(EventLog.Level level, String message) {
+    eventLog.add(level, null, message);
   }
 
   private Image loadImage(String path) {
@@ -480,20 +1004,623 @@ public class Main {
     return Toolkit.getDefaultToolkit().getImage(internalPath);
   }
 
+  enum SlotState {
+    IDLE("Idle"),
+    POLLING("Polling"),
+    WAITING("Waiting for prefetched task"),
+    RUNNING("Running"),
+    QUEUEING_UPLOAD("Waiting for room in the upload queue"),
+    ERROR("Error");
+
+    private final String title;
+
+    SlotState(String title) {
+      this.title = title;
+    }
+
+    @Override
+    public String toString() {
+      return title;
+    }
+  }
+
+  enum PollOutcome {
+    TASK_COMPLETED,
+    QUEUE_EMPTY,
+    FAILED
+  }
+
+  /**
+   * One concurrent execution slot: polls for the next task, runs it and uploads its results.
+   * The number of slots is set by <code>execution_slots</code> in xbot.properties.
+   */
+  class ExecutionSlot implements Runnable {
+    private final String name;
+    private volatile SlotState state = SlotState.IDLE;
+    private volatile String taskName;
+    private volatile long stateChangedAt = System.currentTimeMillis();
+    private final PollScheduler pollScheduler = new PollScheduler(pollMinDelay, pollMaxDelay, pollJitter);
+
+    public ExecutionSlot(int number) {
+      this.name = "Slot #" + number;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public SlotState getState() {
+      return state;
+    }
+
+    public String getTaskName() {
+      return taskName;
+    }
+
+    public long getStateChangedAt() {
+      return stateChangedAt;
+    }
+
+    void setState(SlotState state, String taskName) {
+      this.state = state;
+      this.taskName = taskName;
+      this.stateChangedAt = System.currentTimeMillis();
+    }
+
+    void log(String message) {
+      eventLog.add(EventLog.Level.INFO, name, message);
+    }
+
+    void log(String message, String detail) {
+      eventLog.add(EventLog.Level.INFO, name, message, detail);
+    }
+
+    void schedule(long delayMillis) {
+      if (stopping) return;
+      try {
+        scheduler.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException ignored) {
+        // shutting down
+      }
+    }
+
+    public void run() {
+      long delay;
+      logger.info(name + " is awake");
+      log("TestRunner is awake getting next test to run");
+      Client client = theClient.get();
+      if (client != null) {
+        PollOutcome outcome;
+        while ((outcome = runScript(this, client)) == PollOutcome.TASK_COMPLETED && !stopping) {
+          pollScheduler.onTaskTaken();
+        }
+        delay = outcome == PollOutcome.FAILED ? pollScheduler.onFailure() : pollScheduler.onEmptyQueue();
+      } else { // client is null
+        logger.warning("PractiTest client is not yet configured");
+        log("PractiTest client is not yet configured");
+        delay = pollScheduler.onEmptyQueue();
+      }
+      logger.info(name + " finished, going to sleep for " + delay + "ms.");
+      log("TestRunner finished, going to sleep for " + delay + "ms.");
+      schedule(delay);
+    }
+  }
+
+  /**
+   * Leases tasks from the server in the background, so the next task is ready when a slot frees up.
+   * At most <code>prefetch_depth</code> leased tasks wait for a slot; they are leased up to
+   * <code>lease_batch_size</code> tasks per request. Tasks that are still waiting on
+   * shutdown are saved next to xbot.properties and are run first on the next start.
+   */
+  class TaskPrefetcher implements Runnable {
+    private final int depth;
+    private final int batchSize;
+    private final BlockingQueue<Client.Task> tasks = new LinkedBlockingQueue<Client.Task>();
+    private final LeasePermits leasePermits;
+    private final PollScheduler pollScheduler = new PollScheduler(pollMinDelay, pollMaxDelay, pollJitter);
+    private Thread thread;
+
+    public TaskPrefetcher(int depth, int batchSize) {
+      this.depth = depth;
+      this.batchSize = batchSize;
+      this.leasePermits = new LeasePermits(depth);
+    }
+
+    public boolean isEnabled() {
+      return depth > 0;
+    }
+
+    public int getDepth() {
+      return depth;
+    }
+
+    public int getNumOfQueuedTasks() {
+      return tasks.size();
+    }
+
+    public void start() {
+      if (!isEnabled()) return;
+      thread = threads.newThread(this, "Task prefetcher");
+      thread.start();
+    }
+
+    public void stop() {
+      if (thread == null) return;
+      thread.interrupt();
+      try {
+        thread.join(PREFETCH_STOP_TIMEOUT_MILLIS);
+      } catch (InterruptedException ignored) {
+      }
+    }
+
+    public Client.Task poll() {
+      return taken(tasks.poll());
+    }
+
+    /**
+     * Waits for the next prefetched task.
+     *
+     * @return the task, or null when the xBot is stopping.
+     */
+    public Client.Task take() throws InterruptedException {
+      Client.Task task = null;
+      while (task == null && !stopping) {
+        task = tasks.poll(PREFETCH_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      }
+      return taken(task);
+    }
+
+    /**
+     * Takes the queued tasks with the command line, without waiting.
+     */
+    public List<Client.Task> pollMatching(String command, int max) {
+      List<Client.Task> matching = new ArrayList<Client.Task>();
+      for (Client.Task task : tasks) {
+        if (matching.size() >= max) break;
+        // another slot may have taken it meanwhile
+        if (task.getPathToTestApplication().equals(command) && tasks.remove(task))
+          matching.add(taken(task));
+      }
+      return matching;
+    }
+
+    private Client.Task taken(Client.Task task) {
+      if (task != null) leasePermits.release();
+      return task;
+    }
+
+    public void run() {
+      while (!stopping) {
+        // wait until a whole batch fits, so the slots work through the local batch before the next lease
+        int permits = Math.min(batchSize, depth);
+        try {
+          leasePermits.acquire(permits);
+        } catch (InterruptedException e) {
+          break;
+        }
+        long delay;
+        int leased = 0;
+        long startedAt = System.nanoTime();
+        try {
+          Client client = theClient.get();
+          List<Client.Task> batch = client == null ? Collections.<Client.Task>emptyList() : client.nextTasks(permits);
+          if (client != null) {
+            pollDuration.record((System.nanoTime() - startedAt) / 1000000);
+            polls.increment(batch.isEmpty() ? POLL_EMPTY : POLL_TASK);
+          }
+          for (Client.Task task : batch) {
+            tasks.add(task);
+            addTestRunnerLog("Prefetched " + task.getDescription() + " [" + task.getPathToTestApplication() + "]");
+          }
+          leased = batch.size();
+          delay = leased > 0 ? pollScheduler.onTaskTaken() : pollScheduler.onEmptyQueue();
+        } catch (Throwable e) {
+          pollDuration.record((System.nanoTime() - startedAt) / 1000000);
+          polls.increment(POLL_FAILED);
+          errorDisplay(e.getMessage(), "Failed to prefetch task: ");
+          delay = pollScheduler.onFailure();
+        } finally {
+          if (leased < permits)
+            leasePermits.release(permits - leased);
+          else if (leased > permits) // the server sent more than asked, they still take room in the queue
+            leasePermits.reduce(leased - permits);
+        }
+        if (delay > 0) {
+          try {
+            Thread.sleep(delay);
+          } catch (InterruptedException e) {
+            break;
+          }
+        }
+      }
+    }
+
+    /**
+     * Restores the tasks saved by {@link #saveRemainingTasks()}. A file that fails to parse is renamed aside,
+     * none of its tasks are restored.
+     */
+    public void loadSavedTasks() {
+      if (!PREFETCHED_TASKS_FILE.exists()) return;
+      List<Client.Task> restored = new ArrayList<Client.Task>();
+      try {
+        Properties saved = new Properties();
+        FileReader reader = new FileReader(PREFETCHED_TASKS_FILE);
+        try {
+          saved.load(reader);
+        } finally {
+          reader.close();
+        }
+        int count = Integer.parseInt(saved.getProperty("tasks", "0"));
+        for (int i = 0; i < count; ++i) {
+          String prefix = "task." + i + ".";
+          restored.add(new Client.Task(saved.getProperty(prefix + "instance_id"),
+                  saved.getProperty(prefix + "description"),
+                  saved.getProperty(prefix + "path_to_application"),
+                  saved.getProperty(prefix + "path_to_results"),
+                  Integer.parseInt(saved.getProperty(prefix + "num_of_files_to_upload")),
+                  Integer.parseInt(saved.getProperty(prefix + "timeout_in_seconds")),
+                  saved.getProperty(prefix + "results_include"),
+                  saved.getProperty(prefix + "results_exclude")));
+        }
+      } catch (Exception e) {
+        File corrupt = new File(PREFETCHED_TASKS_FILE.getPath() + ".corrupt");
+        if ((corrupt.exists() && !corrupt.delete()) || !PREFETCHED_TASKS_FILE.renameTo(corrupt))
+          corrupt = PREFETCHED_TASKS_FILE;
+        errorDisplay(e.toString(), "Failed to load prefetched tasks, kept in [" + corrupt.getAbsolutePath() + "]: ");
+        return;
+      }
+      tasks.addAll(restored);
+      // restored tasks occupy prefetch room like freshly leased ones
+      leasePermits.reduce(restored.size());
+      logger.info("Restored " + restored.size() + " task(s) leased before the last shutdown");
+      addTestRunnerLog("Restored " + restored.size() + " task(s) leased before the last shutdown");
+      if (!PREFETCHED_TASKS_FILE.delete())
+        logger.warning("Failed to delete [" + PREFETCHED_TASKS_FILE.getAbsolutePath() + "]");
+    }
+
+    public void saveRemainingTasks() {
+      List<Client.Task> remaining = new ArrayList<Client.Task>();
+      tasks.drainTo(remaining);
+      if (remaining.isEmpty()) return;
+      logger.info("Saving " + remaining.size() + " prefetched task(s) to [" + PREFETCHED_TASKS_FILE.getAbsolutePath() + "]");
+      Properties saved = new Properties();
+      saved.setProperty("tasks", String.valueOf(remaining.size()));
+      for (int i = 0; i < remaining.size(); ++i) {
+        Client.Task task = remaining.get(i);
+        String prefix = "task." + i + ".";
+        saved.setProperty(prefix + "instance_id", task.getInstanceId());
+        saved.setProperty(prefix + "description", task.getDescription());
+        saved.setProperty(prefix + "path_to_application", task.getPathToTestApplication());
+        saved.setProperty(prefix + "path_to_results", task.getPathToTestResults());
+        saved.setProperty(prefix + "num_of_files_to_upload", String.valueOf(task.getNumOfFilesToUpload()));
+        saved.setProperty(prefix + "timeout_in_seconds", String.valueOf(task.getTimeoutInSeconds()));
+        if (task.getResultsInclude() != null)
+          saved.setProperty(prefix + "results_include", task.getResultsInclude());
+        if (task.getResultsExclude() != null)
+          saved.setProperty(prefix + "results_exclude", task.getResultsExclude());
+      }
+      // written to a temporary file, fsync'd and renamed, so a crash doesn't leave half of the tasks
+      File temporary = new File(PREFETCHED_TASKS_FILE.getPath() + ".tmp");
+      try {
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+          saved.store(out, "Tasks leased by the xBot that were not run yet.");
+          out.getFD().sync();
+        } finally {
+          out.close();
+        }
+        // File.renameTo doesn't replace an existing file on Windows
+        if (!temporary.renameTo(PREFETCHED_TASKS_FILE) &&
+            !(PREFETCHED_TASKS_FILE.delete() && temporary.renameTo(PREFETCHED_TASKS_FILE)))
+          throw new IOException("Failed to replace [" + PREFETCHED_TASKS_FILE.getAbsolutePath() + "]");
+      } catch (IOException e) {
+        logger.severe("Failed to save prefetched tasks: " + e.getMessage());
+      }
+    }
+  }
+
+  // a subclass, reducePermits() is protected
+  private static class LeasePermits extends Semaphore {
+    private static final long serialVersionUID = 1L;
+
+    private LeasePermits(int permits) {
+      super(permits);
+    }
+
+    private void reduce(int reduction) {
+      reducePermits(reduction);
+    }
+  }
+
+  /**
+   * Uploads task results on its own worker threads, so the next task doesn't wait for the upload.
+   * The queue holds at most <code>upload_queue_size</code> results; when it is full the slots wait.
+   * With <code>upload_batch_size</code> > 1 a worker collects results until the batch is full, its files
+   * reach <code>upload_batch_max_bytes</code> or <code>upload_batch_max_delay_ms</code> passes, and uploads
+   * them with one request. Results the server rejects are retried one by one.
+   */
+  class ResultUploader implements Runnable {
+    private final BlockingQueue<UploadJob> jobs;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private volatile boolean draining = false;
+
+    private final AtomicLong numOfUploads = new AtomicLong();
+    private final AtomicLong numOfRequests = new AtomicLong();
+    private final AtomicLong numOfFailures = new AtomicLong();
+    private final AtomicLong totalUploadMillis = new AtomicLong();
+    private final AtomicLong totalQueueMillis = new AtomicLong();
+    private volatile long lastUploadMillis = 0;
+
+    public ResultUploader(int queueSize, int numOfWorkers) {
+      this.jobs = new ArrayBlockingQueue<UploadJob>(queueSize);
+      for (int i = 0; i < numOfWorkers; ++i) {
+        workers.add(threads.newThread(this, "Result uploader #" + (i + 1)));
+      }
+    }
+
+    public void start() {
+      for (Thread worker : workers) {
+        worker.start();
+      }
+    }
+
+    /**
+     * Uploads whatever is queued and waits for the workers to finish.
+     */
+    public void stop() {
+      draining = true;
+      for (Thread worker : workers) {
+        try {
+          worker.join();
+        } catch (InterruptedException ignored) {
+        }
+      }
+    }
+
+    /**
+     * @param slot the slot that ran the task, null for replayed results.
+     */
+    public void submit(UploadJob job, ExecutionSlot slot) throws InterruptedException {
+      if (!jobs.offer(job)) {
+        log(slot, "Upload queue is full, waiting...");
+        jobs.put(job);
+      }
+      log(slot, "Queued test results for upload " +
+              (job.result.getFiles() == null ? "[no result files]" : job.result.getFiles().toString()));
+    }
+
+    private void log(ExecutionSlot slot, String message) {
+      if (slot != null)
+        slot.log(message);
+      else
+        addTestRunnerLog(message);
+    }
+
+    private void uploaded(UploadJob job) {
+      if (job.spoolEntry == null) return;
+      try {
+        spool.acknowledge(job.spoolEntry.getId());
+      } catch (IOException e) {
+        logger.severe("Failed to acknowledge spooled result: " + e.getMessage());
+      }
+    }
+
+    private void failed(UploadJob job) {
+      if (job.spoolEntry != null) {
+        spool.release(job.spoolEntry.getId());
+        addTestRunnerLog("Test results of [" + job.taskName + "] are kept in the spool and will be uploaded later");
+      }
+    }
+
+    public int getNumOfQueuedJobs() {
+      return jobs.size();
+    }
+
+    public String describe() {
+      long uploads = numOfUploads.get();
+      return "Upload queue: " + jobs.size() + " waiting (capacity " + (jobs.size() + jobs.remainingCapacity()) + ")" +
+              ", uploads: " + uploads + " (failed: " + numOfFailures.get() + ", requests: " + numOfRequests.get() + ")" +
+              ", last upload: " + lastUploadMillis + "ms" +
+              ", average upload: " + (uploads == 0 ? 0 : totalUploadMillis.get() / uploads) + "ms" +
+              ", average wait in queue: " + (uploads == 0 ? 0 : totalQueueMillis.get() / uploads) + "ms" +
+              describeCompression();
+    }
+
+    private String describeCompression() {
+      Client client = theClient.get();
+      if (client == null) return "";
+      StringBuilder description = new StringBuilder();
+      if (client.getRawResultBytes() > 0)
+        description.append(", compressed result files: ").append(client.getRawResultBytes()).append(" bytes sent as ").
+          append(client.getCompressedResultBytes()).append(" bytes");
+      if (client.getDeduplicatedResultBytes() > 0)
+        description.append(", result files the server already had: ").append(client.getDeduplicatedResultBytes()).append(" bytes");
+      return description.toString();
+    }
+
+    public void run() {
+      while (true) {
+        UploadJob job;
+        try {
+          job = jobs.poll(UPLOAD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          break;
+        }
+        if (job == null) {
+          if (draining) break;
+          continue;
+        }
+        List<UploadJob> batch;
+        try {
+          batch = collectBatch(job);
+        } catch (InterruptedException e) {
+          break;
+        }
+        for (UploadJob batchJob : batch) checkSpooledFiles(batchJob);
+        if (batch.size() == 1)
+          upload(job);
+        else
+          upload(batch);
+      }
+    }
+
+    /**
+     * Leaves out spooled result files that a later test rewrote in place, see {@link ResultSpool#findChangedFiles};
+     * the result says which ones are missing.
+     */
+    private void checkSpooledFiles(UploadJob job) {
+      if (job.spoolEntry == null) return;
+      List<File> changed = spool.findChangedFiles(job.spoolEntry);
+      if (changed.isEmpty()) return;
+      StringBuilder names = new StringBuilder();
+      for (File file : changed) names.append(names.length() > 0 ? ", " : "").append(file.getName());
+      errorDisplay(names.toString(), "Result files of [" + job.taskName + "] changed before their upload and are left out: ");
+      List<File> files = new ArrayList<File>(job.result.getFiles());
+      files.removeAll(changed);
+      job.result = new Client.TaskResult(job.result.getInstanceId(), job.result.getExitCode(), files,
+              job.result.getOutput(Integer.MAX_VALUE) + "\n[xBot] Result files changed by a later test before their upload: " + names,
+              job.result.getStreamedOutputBytes());
+    }
+
+    private List<UploadJob> collectBatch(UploadJob first) throws InterruptedException {
+      List<UploadJob> batch = new ArrayList<UploadJob>();
+      batch.add(first);
+      long bytes = first.getSize();
+      long deadline = System.currentTimeMillis() + uploadBatchMaxDelay;
+      while (batch.size() < uploadBatchSize && bytes < uploadBatchMaxBytes) {
+        long timeout = draining ? 0 : deadline - System.currentTimeMillis();
+        UploadJob job = timeout > 0 ? jobs.poll(timeout, TimeUnit.MILLISECONDS) : jobs.poll();
+        if (job == null) break;
+        batch.add(job);
+        bytes += job.getSize();
+      }
+      return batch;
+    }
+
+    private void upload(List<UploadJob> batch) {
+      long startedAt = System.currentTimeMillis();
+      List<Client.TaskResult> results = new ArrayList<Client.TaskResult>();
+      Map<Client.TaskResult, UploadJob> jobsByResult = new IdentityHashMap<Client.TaskResult, UploadJob>();
+      for (UploadJob job : batch) {
+        results.add(job.result);
+        jobsByResult.put(job.result, job);
+      }
+      List<UploadJob> failed = new ArrayList<UploadJob>();
+      try {
+        Client client = theClient.get();
+        if (client == null)
+          throw new IllegalStateException("PractiTest client is not configured");
+        addTestRunnerLog("Uploading test results of " + batch.size() + " tasks...");
+        for (Client.TaskResult result : client.uploadResults(results)) {
+          failed.add(jobsByResult.get(result));
+        }
+        addTestRunnerLog("Finished uploading test results of " + (batch.size() - failed.size()) + " tasks.");
+      } catch (Throwable e) {
+        uploadFailures.increment();
+        errorDisplay(e.getMessage(), "Failed to upload test results of " + batch.size() + " tasks: ");
+        failed = batch;
+      } finally {
+        long finishedAt = System.currentTimeMillis();
+        lastUploadMillis = finishedAt - startedAt;
+        uploadDuration.record(lastUploadMillis);
+        numOfRequests.incrementAndGet();
+        for (UploadJob job : batch) {
+          if (failed.contains(job)) continue;
+          uploaded(job);
+          uploadBytes.add(job.getSize());
+          totalUploadMillis.addAndGet(lastUploadMillis);
+          totalQueueMillis.addAndGet(startedAt - job.queuedAt);
+          numOfUploads.incrementAndGet();
+        }
+      }
+      for (UploadJob job : failed) {
+        addTestRunnerLog("Retrying upload of [" + job.taskName + "] on its own");
+        upload(job);
+      }
+    }
+
+    private void upload(UploadJob job) {
+      long startedAt = System.currentTimeMillis();
+      try {
+        Client client = theClient.get();
+        if (client == null)
+          throw new IllegalStateException("PractiTest client is not configured");
+        addTestRunnerLog("Uploading test results of [" + job.taskName + "]...");
+        String uploadedTo = client.uploadResult(job.result);
+        uploaded(job);
+        uploadBytes.add(job.getSize());
+        addTestRunnerLog("Finished uploading test results [" + uploadedTo + "].");
+        setTrayStatus(trayIconImageReady, "PractiTest xBot finished running task, ready for the next one", TrayIcon.MessageType.INFO);
+      } catch (Throwable e) {
+        numOfFailures.incrementAndGet();
+        uploadFailures.increment();
+        errorDisplay(e.getMessage(), "Failed to upload test results of [" + job.taskName + "]: ");
+        failed(job);
+      } finally {
+        long finishedAt = System.currentTimeMillis();
+        lastUploadMillis = finishedAt - startedAt;
+        uploadDuration.record(lastUploadMillis);
+        numOfRequests.incrementAndGet();
+        totalUploadMillis.addAndGet(lastUploadMillis);
+        totalQueueMillis.addAndGet(startedAt - job.queuedAt);
+        numOfUploads.incrementAndGet();
+      }
+    }
+  }
+
+  private static class UploadJob {
+    private final String taskName;
+    private Client.TaskResult result;
+    private final ResultSpool.Entry spoolEntry;
+    private final long queuedAt = System.currentTimeMillis();
+
+    private UploadJob(String taskName, Client.TaskResult result, ResultSpool.Entry spoolEntry) {
+      this.taskName = taskName;
+      this.result = result;
+      this.spoolEntry = spoolEntry;
+    }
+
+    private long getSize() {
+      long size = 0;
+      if (result.getFiles() != null) {
+        for (File file : result.getFiles()) {
+          size += file.length();
+        }
+      }
+      return size;
+    }
+  }
+
   /**
    * This class runs external process with given timeout.
    * The code is based on this article: http://kylecartmell.com/?p=9
    */
   class TaskRunner implements Runnable {
     private Client.Task task;
+    private final List<Client.Task> batch;
 
     private boolean timedOut = false;
     private int exitCode = -1;
     private java.util.List<File> resultFiles;
-    private String output = "";
+    private final Map<String, Integer> batchExitCodes = new HashMap<String, Integer>();
+    private final Map<String, List<File>> batchResultFiles = new HashMap<String, List<File>>();
+    private volatile OutputCapture outputCapture;
+    private ConsoleStreamer consoleStreamer;
+    private File spillFile;
+    private long streamedOutputBytes = -1;
 
     public TaskRunner(Client.Task task) {
+      this(task, Collections.singletonList(task));
+    }
+
+    /**
+     * Runs several tasks with the same command line in one process, see {@link #prepareBatch(ProcessBuilder)}.
+     *
+     * @param batch all the tasks, <code>task</code> included.
+     */
+    public TaskRunner(Client.Task task, List<Client.Task> batch) {
       this.task = task;
+      this.batch = batch;
     }
 
     public boolean isTimedOut() {
@@ -508,14 +1635,55 @@ public class Main {
       return resultFiles;
     }
 
+    public int getExitCode(Client.Task batchTask) {
+      if (!isBatch()) return exitCode;
+      Integer batchExitCode = batchExitCodes.get(batchTask.getInstanceId());
+      return batchExitCode == null ? -1 : batchExitCode;
+    }
+
+    public List<File> getResultFiles(Client.Task batchTask) {
+      return isBatch() ? batchResultFiles.get(batchTask.getInstanceId()) : resultFiles;
+    }
+
+    private boolean isBatch() {
+      return batch.size() > 1;
+    }
+
+    /**
+     * @return head and tail of the console output, at most <code>console_memory_limit_bytes</code>.
+     */
     public String getOutput() {
-      return output;
+      OutputCapture capture = outputCapture;
+      return capture == null ? "" : capture.getOutput();
+    }
+
+    /**
+     * @return number of console output bytes streamed to the server while the task ran, -1 when not streamed.
+     */
+    public long getStreamedOutputBytes() {
+      return streamedOutputBytes;
+    }
+
+    public long getOutputSize() {
+      OutputCapture capture = outputCapture;
+      return capture == null ? 0 : capture.getTotalBytes();
+    }
+
+    /**
+     * @return file with the whole console output, null when it isn't kept.
+     */
+    public File getOutputFile() {
+      OutputCapture capture = outputCapture;
+      return capture == null ? null : capture.getSpillFile();
     }
 
     public void run() {
-      Timer timer = null;
+      TaskWatchdog.Watch watch = null;
       Process process = null;
+      WorkerPool.Worker worker = null;
       boolean captureFiles = false;
+      ResultFileWatcher resultFileWatcher = null;
+      File[] batchFiles = null;
       try {
         // parse the command line
         List<String> parameters = new ArrayList<String>();
@@ -533,107 +1701,242 @@ public class Main {
         addTestRunnerLog("Running command [" + parameters.toString() + "]");
         File workingDirectory = new File(parameters.get(0)).getParentFile();
         logger.info("Working directory: [" + workingDirectory.getAbsolutePath() + "]");
-        ProcessBuilder processBuilder = new ProcessBuilder(parameters);
-        processBuilder.directory(workingDirectory);
-        processBuilder.redirectErrorStream(true);
-        timer = new Timer(true);
-        Interrupter interrupter = new Interrupter(Thread.currentThread());
-        timer.schedule(interrupter, task.getTimeoutInSeconds() * 1000);
-        process = processBuilder.start();
-        StreamDrainer streamDrainer = new StreamDrainer(process.getInputStream());
-        Thread streamDrainerThread = new Thread(streamDrainer);
-        streamDrainerThread.setDaemon(true);
+        if (workerPool != null && !isBatch())
+          worker = workerPool.acquire(task.getPathToTestApplication(), parameters, workingDirectory);
+        // batch instances have their own result directories, there is nothing stale to tell apart
+        if (!isBatch()) resultFileWatcher = startResultFileWatcher();
+        InputStream output;
+        if (worker != null) {
+          addTestRunnerLog("Running [" + task.getDescription() + "] on a worker");
+          process = worker.getProcess();
+          output = worker.start(task);
+        } else {
+          ProcessBuilder processBuilder = new ProcessBuilder(parameters);
+          processBuilder.directory(workingDirectory);
+          processBuilder.redirectErrorStream(true);
+          if (isBatch()) batchFiles = prepareBatch(processBuilder);
+          process = processBuilder.start();
+          output = process.getInputStream();
+        }
+        long timeoutMillis = 0;
+        for (Client.Task batchTask : batch) timeoutMillis += batchTask.getTimeoutInSeconds() * 1000L;
+        watch = watchdog.watch(process, task.getDescription(), timeoutMillis, killGracePeriod);
+        // a quarter of the memory limit keeps the head, the rest is the tail ring
+        outputCapture = new OutputCapture(output,
+                consoleMemoryLimit / 4, consoleMemoryLimit - consoleMemoryLimit / 4, spillFile = createSpillFile());
+        Thread streamDrainerThread = threads.newThread(outputCapture, task.getDescription() + " output drainer");
         streamDrainerThread.start();
-        exitCode = process.waitFor();
-        output = streamDrainer.getOutput();
-        captureFiles = true;
+        Client client = theClient.get();
+        if (consoleStreamExecutor != null && client != null && outputCapture.getSpillFile() != null) {
+          consoleStreamer = new ConsoleStreamer(client, task.getInstanceId(), outputCapture.getSpillFile(), consoleStreamChunk);
+          consoleStreamer.start(consoleStreamExecutor, consoleStreamInterval);
+        }
+        int processExitCode;
+        if (worker != null) {
+          // the output ends when the worker reports the exit code, or when it's killed
+          streamDrainerThread.join();
+          processExitCode = worker.getExitCode();
+        } else
+          processExitCode = process.waitFor();
+        watch.cancel();
+        if (watch.isTimedOut()) {
+          timedOut = true;
+          long killMillis = watch.awaitKill();
+          String message = "Timeout expired for [" + task.getDescription() + "], " + (killMillis < 0 ?
+                  "some of its " + watch.getNumOfProcesses() + " process(es) are still alive" :
+                  "terminated " + watch.getNumOfProcesses() + " process(es) in " + killMillis + " ms");
+          addTestRunnerLog(EventLog.Level.WARNING, message);
+          logger.warning(message);
+        } else {
+          exitCode = processExitCode;
+          captureFiles = true;
+        }
+        // let the drainer read what is left in the pipe (children that inherited it may keep it open)
+        streamDrainerThread.join(OUTPUT_DRAIN_TIMEOUT_MILLIS);
       } catch (InterruptedException e) {
-        // timeout expired
-        addTestRunnerLog("Timeout expired for [" + task.getDescription() + "]");
-        logger.warning("Timeout expired for [" + task.getDescription() + "]");
-        timedOut = true;
-        process.destroy();
+        addTestRunnerLog(EventLog.Level.WARNING, "Interrupted while running [" + task.getDescription() + "]");
+        logger.warning("Interrupted while running [" + task.getDescription() + "]");
+        if (watch != null) watch.cancel();
+        if (process != null) process.destroy();
       } catch (IOException e) {
         // some other error
-        addTestRunnerLog("IO exception while running [" + task.getDescription() + "]: " + e.getMessage());
+        addTestRunnerLog(EventLog.Level.ERROR, "IO exception while running [" + task.getDescription() + "]: " + e.getMessage());
         logger.warning("IO exception while running [" + task.getDescription() + "]: " + e.getMessage());
       } catch (Throwable e) {
         // some other non IO-related error
-        addTestRunnerLog("Exception while running [" + task.getDescription() + "]: " + e.getMessage());
+        addTestRunnerLog(EventLog.Level.ERROR, "Exception while running [" + task.getDescription() + "]: " + e.getMessage());
         logger.warning("Exception while running [" + task.getDescription() + "]: " + e.getMessage());
       } finally {
-        // If the process returns within the timeout period, we have to stop the interrupter
-        // so that it does not unexpectedly interrupt some other code later.
-        if (timer != null) timer.cancel();
-
-        // We need to clear the interrupt flag on the current thread just in case
-        // interrupter executed after waitFor had already returned but before timer.cancel
-        // took effect.
-        //
-        // Oh, and there's also Sun bug 6420270 to worry about here.
+        // a worker that didn't finish the test is stopped
+        if (worker != null) workerPool.release(worker);
+
+        // the final result upload closes the stream
+        if (consoleStreamer != null) {
+          // a spill file that failed to be written is gone, the streamed part isn't the whole output
+          if (outputCapture.getSpillFile() == null) consoleStreamer.abort();
+          streamedOutputBytes = consoleStreamer.finish();
+        }
+        if (spillFile != null) pruneSpillFiles(spillFile);
+
+        // the result is still collected when the runner was interrupted
         Thread.interrupted();
       }
 
-      if (captureFiles) {
+      List<File> watchedFiles = null;
+      if (resultFileWatcher != null) {
+        try {
+          watchedFiles = resultFileWatcher.finish();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+
+      if (batchFiles != null) {
+        if (captureFiles) collectBatchResults(batchFiles[1]);
+        for (File batchFile : batchFiles) {
+          if (batchFile.exists() && !batchFile.delete())
+            logger.warning("Failed to delete [" + batchFile.getAbsolutePath() + "]");
+        }
+      } else if (captureFiles) {
         logger.info("Capturing files from [" + task.getPathToTestResults() + "]");
         File taskResultFilesDir = new File(task.getPathToTestResults());
         if (taskResultFilesDir.isDirectory()) {
-          File[] files = taskResultFilesDir.listFiles(new FileFilter() {
-            public boolean accept(File file) {
-              return file.isFile();
-            }
-          });
-          Arrays.sort(files, new Comparator<File>() {
-            public int compare(File left, File right) {
-              return Long.valueOf(left.lastModified()).compareTo(right.lastModified());
-            }
-          });
-          resultFiles = files.length > task.getNumOfFilesToUpload() ?
-                  Arrays.asList(files).subList(0, task.getNumOfFilesToUpload()) :
-                  Arrays.asList(files);
+          try {
+            ResultFileCollector collector = new ResultFileCollector(taskResultFilesDir, task.getNumOfFilesToUpload(),
+                    task.getResultsInclude(), task.getResultsExclude());
+            // the watcher knows what this run wrote, without it stale files of earlier runs are picked too
+            resultFiles = watchedFiles != null ? watchedFiles : collector.collect();
+          } catch (Exception e) {
+            addTestRunnerLog(EventLog.Level.WARNING, "Failed to capture files from [" + task.getPathToTestResults() + "]: " + e.getMessage());
+            logger.warning("Failed to capture files from [" + task.getPathToTestResults() + "]: " + e.getMessage());
+          }
         } else if (taskResultFilesDir.isFile()) {
           resultFiles = Arrays.asList(taskResultFilesDir);
         }
       }
     }
 
-    private class Interrupter extends TimerTask {
-      private Thread thread;
-
-      public Interrupter(Thread thread) {
-        this.thread = thread;
+    /**
+     * Writes the manifest of a batch run: a line <code>instance_id TAB result_directory TAB timeout_in_seconds</code>
+     * per instance, in <code>XBOT_BATCH_MANIFEST</code>. The result directory of an instance is
+     * <code>path_to_results/instance_id</code>. The application writes a line <code>instance_id TAB exit_code</code>
+     * per instance to <code>XBOT_BATCH_EXIT_CODES</code>.
+     *
+     * @return the manifest and the exit codes file.
+     */
+    private File[] prepareBatch(ProcessBuilder processBuilder) throws IOException {
+      File manifest = File.createTempFile("xbot-batch-", ".manifest");
+      File exitCodes = new File(manifest.getPath() + ".exit_codes");
+      Writer writer = new OutputStreamWriter(new FileOutputStream(manifest), "UTF-8");
+      try {
+        for (Client.Task batchTask : batch) {
+          File resultDirectory = new File(batchTask.getPathToTestResults(), batchTask.getInstanceId());
+          if (!resultDirectory.isDirectory() && !resultDirectory.mkdirs())
+            logger.warning("Failed to create [" + resultDirectory.getAbsolutePath() + "]");
+          writer.write(batchTask.getInstanceId() + "\t" + resultDirectory.getAbsolutePath() + "\t" +
+                  batchTask.getTimeoutInSeconds() + "\n");
+        }
+      } finally {
+        writer.close();
       }
+      processBuilder.environment().put(BATCH_MANIFEST_ENVIRONMENT_VARIABLE, manifest.getAbsolutePath());
+      processBuilder.environment().put(BATCH_EXIT_CODES_ENVIRONMENT_VARIABLE, exitCodes.getAbsolutePath());
+      addTestRunnerLog("Running " + batch.size() + " instances of [" + task.getPathToTestApplication() + "] in one process");
+      return new File[]{manifest, exitCodes};
+    }
 
-      @Override
-      public void run() {
-        logger.info("Interrupting...");
-        addTestRunnerLog("Interrupting...");
-        thread.interrupt();
+    /**
+     * Reads the exit codes the application reported and collects the files of every instance;
+     * instances it didn't report get -1.
+     */
+    private void collectBatchResults(File exitCodes) {
+      if (exitCodes.exists()) {
+        try {
+          BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(exitCodes), "UTF-8"));
+          try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+              String[] fields = line.trim().split("\t");
+              if (fields.length != 2) continue;
+              try {
+                batchExitCodes.put(fields[0], Integer.valueOf(fields[1].trim()));
+              } catch (NumberFormatException e) {
+                logger.warning("Invalid batch exit code: [" + line + "]");
+              }
+            }
+          } finally {
+            reader.close();
+          }
+        } catch (IOException e) {
+          logger.warning("Failed to read batch exit codes: " + e.getMessage());
+        }
+      }
+      for (Client.Task batchTask : batch) {
+        if (!batchExitCodes.containsKey(batchTask.getInstanceId()))
+          logger.warning("No exit code reported for instance " + batchTask.getInstanceId());
+        File resultDirectory = new File(batchTask.getPathToTestResults(), batchTask.getInstanceId());
+        try {
+          batchResultFiles.put(batchTask.getInstanceId(), new ResultFileCollector(resultDirectory,
+                  batchTask.getNumOfFilesToUpload(), batchTask.getResultsInclude(), batchTask.getResultsExclude()).collect());
+        } catch (Exception e) {
+          logger.warning("Failed to capture files from [" + resultDirectory.getAbsolutePath() + "]: " + e.getMessage());
+        }
       }
     }
 
-    private class StreamDrainer implements Runnable {
-      private final BufferedReader reader;
-      private final StringBuffer outputBuffer = new StringBuffer(); // use StringBuffer instead of StringBuilder -- synchronization
+    /**
+     * @return null when result files are scanned after the run.
+     */
+    private ResultFileWatcher startResultFileWatcher() {
+      File taskResultFilesDir = new File(task.getPathToTestResults());
+      if (!watchResultFiles || !taskResultFilesDir.isDirectory()) return null;
+      try {
+        ResultFileWatcher watcher = new ResultFileWatcher(taskResultFilesDir,
+                new ResultFileCollector(taskResultFilesDir, task.getNumOfFilesToUpload(),
+                        task.getResultsInclude(), task.getResultsExclude()),
+                theClient.get(), task.getInstanceId(), task.getNumOfFilesToUpload(), resultStableDelay);
+        watcher.start(threads);
+        return watcher;
+      } catch (Exception e) {
+        logger.warning("Failed to watch [" + task.getPathToTestResults() + "], scanning it after the run: " + e.getMessage());
+        return null;
+      }
+    }
 
-      private StreamDrainer(InputStream inputStream) {
-        this.reader = new BufferedReader(new InputStreamReader(inputStream));
+    private File createSpillFile() {
+      if (consoleSpillRetention == 0) return null;
+      if (!CONSOLE_SPILL_DIRECTORY.isDirectory() && !CONSOLE_SPILL_DIRECTORY.mkdirs()) {
+        logger.warning("Failed to create [" + CONSOLE_SPILL_DIRECTORY.getAbsolutePath() + "]");
+        return null;
       }
+      File spillFile = new File(CONSOLE_SPILL_DIRECTORY, task.getInstanceId().replaceAll("[^\\w.-]", "_") + "-" + System.currentTimeMillis() + ".log");
+      activeSpillFiles.add(spillFile);
+      return spillFile;
+    }
 
-      public void run() {
-        String line;
-        try {
-          while (!Thread.interrupted() && (line = reader.readLine()) != null) {
-            outputBuffer.append(line).append('\n');
+    /**
+     * Keeps the newest <code>console_spill_retention</code> spill files of finished tasks, once this one finished.
+     */
+    private void pruneSpillFiles(File finished) {
+      activeSpillFiles.remove(finished);
+      synchronized (activeSpillFiles) {
+        File[] spillFiles = CONSOLE_SPILL_DIRECTORY.listFiles();
+        if (spillFiles == null) return;
+        List<File> inactive = new ArrayList<File>();
+        for (File file : spillFiles) {
+          if (!activeSpillFiles.contains(file)) inactive.add(file);
+        }
+        if (inactive.size() <= consoleSpillRetention) return;
+        Collections.sort(inactive, new Comparator<File>() {
+          public int compare(File left, File right) {
+            return Long.valueOf(left.lastModified()).compareTo(right.lastModified());
           }
-        } catch (IOException e) {
-          logger.log(Level.WARNING, "Failed to read process console stream", e);
+        });
+        for (File file : inactive.subList(0, inactive.size() - consoleSpillRetention)) {
+          if (!file.delete())
+            logger.warning("Failed to delete [" + file.getAbsolutePath() + "]");
         }
       }
-
-      public String getOutput() {
-        return outputBuffer.toString();
-      }
     }
   }
 }
@@ -0,0 +1,184 @@
+package com.practitest.xbot;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters, histograms and gauges shown by <code>/metrics</code> in the Prometheus text format.
+ * <p>
+ * Recording is cheap enough for every poll and task: counters are striped <code>LongAdder</code>s and
+ * histograms have fixed buckets, so nothing is allocated or locked. Gauges are read when rendered.
+ */
+public class Metrics {
+  // histogram bucket bounds, from a fast poll to a long test run
+  private static final long[] BUCKET_MILLIS = {
+          5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000, 900000, 3600000
+  };
+
+  public interface Gauge {
+    double value();
+  }
+
+  private final List<Metric> metrics = new ArrayList<Metric>();
+
+  public synchronized Counter counter(String name, String help) {
+    return add(new Counter(name, help, null, new String[]{null}));
+  }
+
+  /**
+   * @return counter with one series per label value, series that are still zero aren't rendered.
+   */
+  public synchronized Counter counter(String name, String help, String label, String... values) {
+    return add(new Counter(name, help, label, values));
+  }
+
+  /**
+   * @param total read when rendered, for totals counted elsewhere; it never decreases.
+   */
+  public synchronized void counter(String name, String help, Gauge total) {
+    add(new GaugeMetric(name, help, "counter", total));
+  }
+
+  public synchronized Histogram histogram(String name, String help) {
+    return add(new Histogram(name, help));
+  }
+
+  public synchronized void gauge(String name, String help, Gauge gauge) {
+    add(new GaugeMetric(name, help, "gauge", gauge));
+  }
+
+  public void render(PrintWriter out) {
+    List<Metric> snapshot;
+    synchronized (this) {
+      snapshot = new ArrayList<Metric>(metrics);
+    }
+    for (Metric metric : snapshot) {
+      out.print("# HELP " + metric.name + " " + metric.help + "\n");
+      out.print("# TYPE " + metric.name + " " + metric.type + "\n");
+      metric.render(out);
+    }
+  }
+
+  private <T extends Metric> T add(T metric) {
+    metrics.add(metric);
+    return metric;
+  }
+
+  private static String format(double value) {
+    return value == Math.rint(value) && !Double.isInfinite(value) ? String.valueOf((long)value) : String.valueOf(value);
+  }
+
+  private static abstract class Metric {
+    protected final String name;
+    protected final String help;
+    protected final String type;
+
+    protected Metric(String name, String help, String type) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+    }
+
+    protected abstract void render(PrintWriter out);
+  }
+
+  public static class Counter extends Metric {
+    private final String label;
+    private final String[] values;
+    private final LongAdder[] adders;
+
+    private Counter(String name, String help, String label, String[] values) {
+      super(name, help, "counter");
+      this.label = label;
+      this.values = values;
+      this.adders = new LongAdder[values.length];
+      for (int i = 0; i < adders.length; ++i) adders[i] = new LongAdder();
+    }
+
+    public void increment() {
+      adders[0].increment();
+    }
+
+    public void add(long amount) {
+      adders[0].add(amount);
+    }
+
+    /**
+     * @param index of the label value.
+     */
+    public void increment(int index) {
+      adders[index].increment();
+    }
+
+    public long get(int index) {
+      return adders[index].sum();
+    }
+
+    @Override
+    protected void render(PrintWriter out) {
+      if (label == null) {
+        out.print(name + " " + adders[0].sum() + "\n");
+        return;
+      }
+      for (int i = 0; i < adders.length; ++i) {
+        long sum = adders[i].sum();
+        if (sum > 0) out.print(name + "{" + label + "=\"" + values[i] + "\"} " + sum + "\n");
+      }
+    }
+  }
+
+  /**
+   * Durations in seconds, recorded in milliseconds.
+   */
+  public static class Histogram extends Metric {
+    private final LongAdder[] buckets = new LongAdder[BUCKET_MILLIS.length + 1];
+    private final LongAdder sumMillis = new LongAdder();
+
+    private Histogram(String name, String help) {
+      super(name, help, "histogram");
+      for (int i = 0; i < buckets.length; ++i) buckets[i] = new LongAdder();
+    }
+
+    public void record(long millis) {
+      int bucket = 0;
+      while (bucket < BUCKET_MILLIS.length && millis > BUCKET_MILLIS[bucket]) ++bucket;
+      buckets[bucket].increment();
+      sumMillis.add(millis);
+    }
+
+    public long getCount() {
+      long count = 0;
+      for (LongAdder bucket : buckets) count += bucket.sum();
+      return count;
+    }
+
+    @Override
+    protected void render(PrintWriter out) {
+      long count = 0;
+      for (int i = 0; i < BUCKET_MILLIS.length; ++i) {
+        count += buckets[i].sum();
+        out.print(name + "_bucket{le=\"" + format(BUCKET_MILLIS[i] / 1000.0) + "\"} " + count + "\n");
+      }
+      count += buckets[BUCKET_MILLIS.length].sum();
+      out.print(name + "_bucket{le=\"+Inf\"} " + count + "\n");
+      out.print(name + "_sum " + format(sumMillis.sum() / 1000.0) + "\n");
+      out.print(name + "_count " + count + "\n");
+    }
+  }
+
+  private static class GaugeMetric extends Metric {
+    private final Gauge gauge;
+
+    private GaugeMetric(String name, String help, String type, Gauge gauge) {
+      super(name, help, type);
+      this.gauge = gauge;
+    }
+
+    @Override
+    protected void render(PrintWriter out) {
+      out.print(name + " " + format(gauge.value()) + "\n");
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package com.practitest.xbot;
+
+import java.io.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drains a process console stream with bounded memory.
+ * <p/>
+ * The stream is read into one reusable buffer. Only the first <code>headSize</code> and the last
+ * <code>tailSize</code> bytes are kept in memory; the whole stream is optionally written to a spill file.
+ * When writing the spill file fails (e.g. the disk is full) it's deleted and the stream is still drained,
+ * so the process doesn't block on a full pipe.
+ */
+class OutputCapture implements Runnable {
+  private static final Logger logger = Logger.getLogger(OutputCapture.class.getName());
+
+  private static final int READ_BUFFER_SIZE = 8192;
+
+  private final InputStream inputStream;
+  private volatile File spillFile;
+
+  private final byte[] head;
+  private int headLength = 0;
+  private final byte[] tail;
+  private int tailStart = 0;
+  private int tailLength = 0;
+  private long totalBytes = 0;
+
+  /**
+   * @param spillFile file to write the whole stream to, null to keep the head and the tail only.
+   */
+  public OutputCapture(InputStream inputStream, int headSize, int tailSize, File spillFile) {
+    this.inputStream = inputStream;
+    this.spillFile = spillFile;
+    this.head = new byte[headSize];
+    this.tail = new byte[tailSize];
+  }
+
+  /**
+   * @return null when there's none, or writing it failed.
+   */
+  public File getSpillFile() {
+    return spillFile;
+  }
+
+  public synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  public void run() {
+    OutputStream spill = null;
+    try {
+      if (spillFile != null) {
+        try {
+          spill = openSpill(spillFile);
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to create console spill file [" + spillFile.getAbsolutePath() + "]", e);
+          spillFile = null;
+        }
+      }
+      byte[] buffer = new byte[READ_BUFFER_SIZE];
+      int read;
+      while (!Thread.interrupted() && (read = inputStream.read(buffer)) != -1) {
+        append(buffer, read);
+        if (spill != null) {
+          try {
+            spill.write(buffer, 0, read);
+          } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write console spill file [" + spillFile.getAbsolutePath() +
+                    "], keeping the head and the tail only", e);
+            discardSpill(spill);
+            spill = null;
+          }
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to read process console stream", e);
+    } finally {
+      if (spill != null) {
+        try {
+          spill.close();
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Failed to close console spill file", e);
+        }
+      }
+    }
+  }
+
+  // package-private for the tests
+  OutputStream openSpill(File file) throws IOException {
+    return new FileOutputStream(file);
+  }
+
+  private void discardSpill(OutputStream spill) {
+    File file = spillFile;
+    spillFile = null;
+    try {
+      spill.close();
+    } catch (IOException ignored) {
+    }
+    if (!file.delete() && file.exists())
+      logger.warning("Failed to delete console spill file [" + file.getAbsolutePath() + "]");
+  }
+
+  synchronized void append(byte[] buffer, int length) {
+    totalBytes += length;
+    int offset = 0;
+    if (headLength < head.length) {
+      int toHead = Math.min(length, head.length - headLength);
+      System.arraycopy(buffer, 0, head, headLength, toHead);
+      headLength += toHead;
+      offset = toHead;
+    }
+    int remaining = length - offset;
+    if (remaining == 0 || tail.length == 0) return;
+    if (remaining >= tail.length) {
+      System.arraycopy(buffer, offset + remaining - tail.length, tail, 0, tail.length);
+      tailStart = 0;
+      tailLength = tail.length;
+      return;
+    }
+    int end = (tailStart + tailLength) % tail.length;
+    int firstPart = Math.min(remaining, tail.length - end);
+    System.arraycopy(buffer, offset, tail, end, firstPart);
+    System.arraycopy(buffer, offset + firstPart, tail, 0, remaining - firstPart);
+    int overflow = tailLength + remaining - tail.length;
+    if (overflow > 0) {
+      tailStart = (tailStart + overflow) % tail.length;
+      tailLength = tail.length;
+    } else {
+      tailLength += remaining;
+    }
+  }
+
+  /**
+   * @return the captured output, with a marker instead of the bytes that were dropped between the head and the tail.
+   */
+  public synchronized String getOutput() {
+    StringBuilder sb = new StringBuilder(new String(head, 0, headLength));
+    long skipped = totalBytes - headLength - tailLength;
+    if (skipped > 0)
+      sb.append("\n<... ").append(skipped).append(" bytes skipped ...>\n");
+    sb.append(getTail());
+    return sb.toString();
+  }
+
+  /**
+   * @return the last bytes of the output (after the head).
+   */
+  public synchronized String getTail() {
+    byte[] bytes = new byte[tailLength];
+    int firstPart = Math.min(tailLength, tail.length - tailStart);
+    System.arraycopy(tail, tailStart, bytes, 0, firstPart);
+    System.arraycopy(tail, 0, bytes, firstPart, tailLength - firstPart);
+    return new String(bytes);
+  }
+}
@@ -0,0 +1,66 @@
+package com.practitest.xbot;
+
+import java.util.Random;
+
+/**
+ * Computes the delay before the next poll for a task.
+ * <p/>
+ * Right after a task was run the next poll happens immediately. While the queue is empty (or the
+ * server fails) the delay doubles from the floor up to the ceiling. Every delay gets random jitter,
+ * so a fleet of xBots doesn't hit the server in lockstep.
+ */
+class PollScheduler {
+  private final long floorMillis;
+  private final long ceilingMillis;
+  private final int jitterPercent;
+  private final Random random;
+
+  private long backoffMillis = 0;
+
+  public PollScheduler(long floorMillis, long ceilingMillis, int jitterPercent) {
+    this(floorMillis, ceilingMillis, jitterPercent, new Random());
+  }
+
+  PollScheduler(long floorMillis, long ceilingMillis, int jitterPercent, Random random) {
+    if (floorMillis <= 0 || ceilingMillis < floorMillis)
+      throw new IllegalArgumentException("Invalid poll delay range [" + floorMillis + ", " + ceilingMillis + "]");
+    this.floorMillis = floorMillis;
+    this.ceilingMillis = ceilingMillis;
+    this.jitterPercent = Math.max(0, Math.min(100, jitterPercent));
+    this.random = random;
+  }
+
+  /**
+   * @return delay before the next poll after a task was taken from the queue (always 0).
+   */
+  public synchronized long onTaskTaken() {
+    backoffMillis = 0;
+    return 0;
+  }
+
+  /**
+   * @return delay before the next poll after the server reported an empty queue.
+   */
+  public synchronized long onEmptyQueue() {
+    return backOff();
+  }
+
+  /**
+   * @return delay before the next poll after the poll failed (5xx, network error).
+   */
+  public synchronized long onFailure() {
+    return backOff();
+  }
+
+  private long backOff() {
+    backoffMillis = backoffMillis == 0 ? floorMillis : Math.min(ceilingMillis, backoffMillis * 2);
+    return jitter(backoffMillis);
+  }
+
+  private long jitter(long delay) {
+    long range = delay * jitterPercent / 100;
+    if (range == 0) return delay;
+    long jittered = delay - range + (long) (random.nextDouble() * 2 * range);
+    return Math.max(floorMillis, Math.min(ceilingMillis, jittered));
+  }
+}
@@ -0,0 +1,132 @@
+package com.practitest.xbot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Picks the oldest result files of a test.
+ * <p>
+ * Attributes are read once per file while the directory is walked, and only the <code>max</code>
+ * oldest files are kept in a bounded heap, so large shared results directories aren't sorted.
+ * Without an include pattern only the files directly in the results directory are considered;
+ * include and exclude are glob patterns matched against the path relative to it, e.g. <code>**&#47;*.png</code>.
+ */
+public class ResultFileCollector {
+  private final Path root;
+  private final int max;
+  private final PathMatcher include;
+  private final PathMatcher exclude;
+
+  public ResultFileCollector(File root, int max, String includePattern, String excludePattern) {
+    this.root = root.toPath();
+    this.max = max;
+    this.include = createMatcher(includePattern);
+    this.exclude = createMatcher(excludePattern);
+  }
+
+  private static PathMatcher createMatcher(String pattern) {
+    if (pattern == null || pattern.isEmpty()) return null;
+    return FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+  }
+
+  /**
+   * @return up to <code>max</code> files, oldest first.
+   */
+  public List<File> collect() throws IOException {
+    if (max <= 0) return new ArrayList<File>();
+    // the newest of the kept files is on top, so it's the one replaced by an older file
+    final PriorityQueue<Candidate> oldest = new PriorityQueue<Candidate>(max + 1, Collections.reverseOrder());
+    Files.walkFileTree(root, EnumSet.noneOf(FileVisitOption.class), include == null ? 1 : Integer.MAX_VALUE,
+            new SimpleFileVisitor<Path>() {
+              @Override
+              public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                if (!dir.equals(root) && exclude != null && exclude.matches(root.relativize(dir)))
+                  return FileVisitResult.SKIP_SUBTREE;
+                return FileVisitResult.CONTINUE;
+              }
+
+              @Override
+              public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                offer(oldest, file, attributes);
+                return FileVisitResult.CONTINUE;
+              }
+
+              @Override
+              public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // files removed while walking are skipped
+                return FileVisitResult.CONTINUE;
+              }
+            });
+    return drain(oldest);
+  }
+
+  /**
+   * Picks from files that are already known, e.g. recorded by a {@link ResultFileWatcher}.
+   *
+   * @return up to <code>max</code> of the files that still exist, oldest first.
+   */
+  public List<File> collect(Collection<File> files) {
+    if (max <= 0) return new ArrayList<File>();
+    PriorityQueue<Candidate> oldest = new PriorityQueue<Candidate>(max + 1, Collections.reverseOrder());
+    for (File file : files) {
+      try {
+        offer(oldest, file.toPath(), Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+      } catch (IOException e) {
+        // removed by the test
+      }
+    }
+    return drain(oldest);
+  }
+
+  /**
+   * @return whether files below subdirectories can be picked.
+   */
+  public boolean isRecursive() {
+    return include != null;
+  }
+
+  /**
+   * @return whether the file would be picked if it's old enough.
+   */
+  public boolean matches(Path file) {
+    Path relative = root.relativize(file);
+    if (include == null ? relative.getNameCount() != 1 : !include.matches(relative)) return false;
+    return exclude == null || !exclude.matches(relative);
+  }
+
+  private void offer(PriorityQueue<Candidate> oldest, Path file, BasicFileAttributes attributes) {
+    if (!attributes.isRegularFile() || !matches(file)) return;
+    long lastModified = attributes.lastModifiedTime().toMillis();
+    if (oldest.size() < max) {
+      oldest.add(new Candidate(file, lastModified));
+    } else if (lastModified < oldest.peek().lastModified) {
+      oldest.poll();
+      oldest.add(new Candidate(file, lastModified));
+    }
+  }
+
+  private static List<File> drain(PriorityQueue<Candidate> oldest) {
+    File[] files = new File[oldest.size()];
+    for (int i = files.length - 1; i >= 0; --i)
+      files[i] = oldest.poll().path.toFile();
+    return Arrays.asList(files);
+  }
+
+  private static class Candidate implements Comparable<Candidate> {
+    private final Path path;
+    private final long lastModified;
+
+    private Candidate(Path path, long lastModified) {
+      this.path = path;
+      this.lastModified = lastModified;
+    }
+
+    public int compareTo(Candidate other) {
+      if (lastModified != other.lastModified) return lastModified < other.lastModified ? -1 : 1;
+      return path.compareTo(other.path);
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Records the result files a test creates or modifies while it runs, and uploads the ones that
+ * stopped changing before the test ends.
+ * <p>
+ * A file counts as done when its size and time stamp stayed the same for the stable period; it is
+ * uploaded with {@link Client#uploadResultFile(String, File)}, which its result then references.
+ * A file changed after its upload gets a new upload key and is sent with the result as usual.
+ * <p>
+ * Stable files are uploaded oldest first, like the collector picks them, and {@link #finish()} keeps every
+ * uploaded file in the result, so none is left on the server without a result referring to it.
+ */
+public class ResultFileWatcher implements Runnable {
+  private static final Logger logger = Logger.getLogger(ResultFileWatcher.class.getName());
+
+  private final Path root;
+  private final ResultFileCollector collector;
+  private final Client client;
+  private final String instanceId;
+  private final int maxUploads;
+  private final long stableMillis;
+  private final WatchService watchService;
+  private final Map<Path, Observation> observed = new LinkedHashMap<Path, Observation>();
+  private final Set<Path> handled = new HashSet<Path>();
+  private final Set<Path> uploaded = new LinkedHashSet<Path>();
+  private volatile boolean finishing = false;
+  private boolean overflowed = false;
+  private Thread thread;
+
+  /**
+   * @param client     null only records the files.
+   * @param maxUploads the most result files, as the collector's limit.
+   */
+  public ResultFileWatcher(File root, ResultFileCollector collector, Client client, String instanceId,
+                           int maxUploads, long stableMillis) throws IOException {
+    this.root = root.toPath();
+    this.collector = collector;
+    this.client = client;
+    this.instanceId = instanceId;
+    this.maxUploads = maxUploads;
+    this.stableMillis = stableMillis;
+    this.watchService = this.root.getFileSystem().newWatchService();
+    if (collector.isRecursive())
+      registerTree(this.root, false);
+    else
+      register(this.root);
+  }
+
+  public void start(BlockingThreads threads) {
+    thread = threads.newThread(this, "Result watcher " + instanceId);
+    thread.start();
+  }
+
+  /**
+   * Stops watching after the events still queued are recorded.
+   *
+   * @return the result files: the ones uploaded while the test ran, then the oldest of the other files it
+   * created or modified, up to the limit; null when events were lost and the results path has to be scanned.
+   */
+  public List<File> finish() throws InterruptedException {
+    finishing = true;
+    thread.join();
+    synchronized (observed) {
+      if (overflowed) {
+        if (!uploaded.isEmpty())
+          logger.warning("Lost result file events of [" + root + "] after " + uploaded.size() +
+                  " file(s) were uploaded, the scan may pick other files");
+        return null;
+      }
+      List<File> files = new ArrayList<File>();
+      List<File> others = new ArrayList<File>();
+      for (Path path : observed.keySet()) {
+        if (!uploaded.contains(path))
+          others.add(path.toFile());
+        else if (Files.exists(path))
+          files.add(path.toFile());
+      }
+      for (File file : collector.collect(others)) {
+        if (files.size() >= maxUploads) break;
+        files.add(file);
+      }
+      return files;
+    }
+  }
+
+  public void run() {
+    try {
+      long pollMillis = Math.max(stableMillis / 2, 100);
+      while (true) {
+        WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+        while (key != null) {
+          record(key);
+          key = watchService.poll();
+        }
+        if (finishing) break;
+        uploadStableFiles();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        logger.warning("Failed to close watch service of [" + root + "]: " + e.getMessage());
+      }
+    }
+  }
+
+  private void record(WatchKey key) {
+    Path directory = (Path)key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        logger.warning("Lost result file events of [" + root + "], the results path will be scanned");
+        synchronized (observed) {
+          overflowed = true;
+        }
+        continue;
+      }
+      Path path = directory.resolve((Path)event.context());
+      if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+        // files may have been written before the new directory was registered
+        if (collector.isRecursive()) registerTree(path, true);
+      } else if (collector.matches(path)) {
+        synchronized (observed) {
+          if (!observed.containsKey(path)) observed.put(path, new Observation());
+        }
+      }
+    }
+    key.reset();
+  }
+
+  private void register(Path directory) {
+    try {
+      directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+    } catch (IOException e) {
+      logger.warning("Failed to watch [" + directory + "]: " + e.getMessage());
+    }
+  }
+
+  /**
+   * @param recordFiles whether files already in the tree were created by the test.
+   */
+  private void registerTree(Path directory, final boolean recordFiles) {
+    try {
+      Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+          register(dir);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+          if (recordFiles && collector.matches(file)) {
+            synchronized (observed) {
+              if (!observed.containsKey(file)) observed.put(file, new Observation());
+            }
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      logger.warning("Failed to watch [" + directory + "]: " + e.getMessage());
+    }
+  }
+
+  private void uploadStableFiles() {
+    if (client == null || uploaded.size() >= maxUploads) return;
+    List<File> stable = new ArrayList<File>();
+    long now = System.currentTimeMillis();
+    synchronized (observed) {
+      for (Map.Entry<Path, Observation> entry : observed.entrySet()) {
+        if (!handled.contains(entry.getKey()) && entry.getValue().isStable(entry.getKey(), now, stableMillis))
+          stable.add(entry.getKey().toFile());
+      }
+    }
+    // oldest first, as the collector picks the result files
+    for (File file : collector.collect(stable)) {
+      Path path = file.toPath();
+      if (finishing || uploaded.size() >= maxUploads) return;
+      try {
+        if (!client.uploadResultFile(instanceId, file)) {
+          // the server doesn't support it, everything goes with the result
+          synchronized (observed) {
+            handled.addAll(observed.keySet());
+          }
+          return;
+        }
+        logger.info("Uploaded [" + path + "] while the test is running");
+        synchronized (observed) {
+          uploaded.add(path);
+        }
+      } catch (Exception e) {
+        logger.warning("Failed to upload [" + path + "] while the test is running: " + e.getMessage());
+      }
+      // a failed file is sent (or resumed) with the result
+      handled.add(path);
+    }
+  }
+
+  /**
+   * Size and time stamp of a file when they last changed.
+   */
+  private static class Observation {
+    private long size = -1;
+    private long lastModified = -1;
+    private long changedAt = System.currentTimeMillis();
+
+    private boolean isStable(Path path, long now, long stableMillis) {
+      File file = path.toFile();
+      long currentSize = file.length();
+      long currentLastModified = file.lastModified();
+      if (currentSize != size || currentLastModified != lastModified) {
+        size = currentSize;
+        lastModified = currentLastModified;
+        changedAt = now;
+        return false;
+      }
+      // empty files are usually still being written
+      return size > 0 && now - changedAt >= stableMillis;
+    }
+  }
+}
@@ -0,0 +1,397 @@
+package com.practitest.xbot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.practitest.api.Client;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Durable, append-only spool of task results that were not uploaded yet.
+ * <p/>
+ * Every result is written to the journal before the upload starts, and acknowledged once the server accepted
+ * it. Both records are fsync'd, so pending results survive a crash or restart and can be replayed. The journal
+ * is compacted once acknowledged records pile up.
+ * <p/>
+ * The result files are hard-linked into the spool directory, so the next test may replace or delete them
+ * while the result waits for its upload; they are copied where links aren't supported. Files uploaded on their
+ * own in chunks stay references to the test results. {@link #findChangedFiles} reports spooled files that were
+ * rewritten in place since they were recorded.
+ */
+class ResultSpool {
+  private static final Logger logger = Logger.getLogger(ResultSpool.class.getName());
+
+  private static final String JOURNAL_FILE_NAME = "journal.log";
+  private static final int COMPACTION_THRESHOLD = 100;
+
+  private final File directory;
+  private final File journalFile;
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+  private final Set<String> inFlight = new HashSet<String>();
+  private FileOutputStream journal;
+  private int numOfAcknowledgedRecords = 0;
+  private long sequence = 0;
+
+  public ResultSpool(File directory) {
+    this.directory = directory;
+    this.journalFile = new File(directory, JOURNAL_FILE_NAME);
+  }
+
+  /**
+   * Reads the journal left by the previous run and removes files no pending result refers to.
+   */
+  public synchronized void open() throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Failed to create spool directory [" + directory.getAbsolutePath() + "]");
+    if (journalFile.exists()) {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.trim().isEmpty()) continue;
+          JsonNode record;
+          try {
+            record = objectMapper.readTree(line);
+          } catch (IOException e) {
+            // torn write of the last record, it was never acknowledged to the caller
+            logger.warning("Skipping corrupt spool record: " + e.getMessage());
+            continue;
+          }
+          String id = record.path("id").asText();
+          String op = record.path("op").asText();
+          if ("add".equals(op))
+            pending.put(id, parseEntry(record));
+          else if ("materialize".equals(op)) {
+            // files copied by the upload worker of earlier versions
+            Entry entry = pending.get(id);
+            if (entry != null) entry.setFiles(parseFiles(record.path("files")));
+          } else
+            pending.remove(id);
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    File[] entryDirectories = directory.listFiles();
+    if (entryDirectories != null) {
+      for (File entryDirectory : entryDirectories) {
+        if (entryDirectory.isDirectory() && !pending.containsKey(entryDirectory.getName()))
+          delete(entryDirectory);
+      }
+    }
+    compact();
+  }
+
+  public synchronized void close() throws IOException {
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
+  }
+
+  /**
+   * Records the result and links (or copies) its files into the spool.
+   *
+   * @param client decides which files stay references ({@link Client#isChunkedUpload}), null spools all.
+   * @return the spooled entry, it's marked as being uploaded.
+   */
+  public synchronized Entry add(String taskName, Client.TaskResult result, Client client) throws IOException {
+    String id = System.currentTimeMillis() + "-" + (sequence++);
+    List<SpooledFile> files = new ArrayList<SpooledFile>();
+    if (result.getFiles() != null) {
+      try {
+        for (int i = 0; i < result.getFiles().size(); ++i) {
+          File file = result.getFiles().get(i);
+          if (client != null && client.isChunkedUpload(result.getInstanceId(), file)) {
+            files.add(new SpooledFile(file, file.length(), file.lastModified(), false));
+            continue;
+          }
+          // files of one result may share a name, keep each in its own directory
+          File target = new File(new File(new File(directory, id), String.valueOf(i)), file.getName());
+          link(file, target);
+          files.add(new SpooledFile(target, target.length(), target.lastModified(), true));
+        }
+      } catch (IOException e) {
+        delete(new File(directory, id));
+        throw e;
+      }
+    }
+    Entry entry = new Entry(id, taskName, result.getInstanceId(), result.getExitCode(),
+            result.getOutput(Integer.MAX_VALUE), result.getStreamedOutputBytes(), files, result.getFiles() == null);
+    append(addRecord(entry));
+    pending.put(id, entry);
+    inFlight.add(id);
+    return entry;
+  }
+
+  /**
+   * A hard link shares its content with the test's file, so a test that rewrites a file in place rather than
+   * replacing it changes the spooled one too; so does a test that appends to a referenced file.
+   *
+   * @return the files of the entry whose size or time stamp changed since it was spooled.
+   */
+  public List<File> findChangedFiles(Entry entry) {
+    List<File> changed = new ArrayList<File>();
+    for (SpooledFile file : entry.getFiles()) {
+      if (file.getFile().length() != file.getSize() || file.getFile().lastModified() != file.getModified())
+        changed.add(file.getFile());
+    }
+    return changed;
+  }
+
+  /**
+   * Marks the entry as uploaded, it won't be replayed anymore.
+   */
+  public synchronized void acknowledge(String id) throws IOException {
+    if (pending.remove(id) == null) return;
+    inFlight.remove(id);
+    Map<String, Object> record = new LinkedHashMap<String, Object>();
+    record.put("op", "ack");
+    record.put("id", id);
+    append(record);
+    delete(new File(directory, id));
+    if (pending.isEmpty() || ++numOfAcknowledgedRecords >= COMPACTION_THRESHOLD)
+      compact();
+  }
+
+  /**
+   * Marks the entry as failed to upload, it will be returned by {@link #takeForReplay()}.
+   */
+  public synchronized void release(String id) {
+    inFlight.remove(id);
+  }
+
+  /**
+   * @return pending entries that are not being uploaded right now; they are marked as being uploaded.
+   */
+  public synchronized List<Entry> takeForReplay() {
+    List<Entry> entries = new ArrayList<Entry>();
+    for (Entry entry : pending.values()) {
+      if (inFlight.add(entry.getId())) entries.add(entry);
+    }
+    return entries;
+  }
+
+  public synchronized int getNumOfPendingEntries() {
+    return pending.size();
+  }
+
+  private static Map<String, Object> addRecord(Entry entry) {
+    Map<String, Object> record = new LinkedHashMap<String, Object>();
+    record.put("op", "add");
+    record.put("id", entry.getId());
+    record.put("task", entry.getTaskName());
+    record.put("instance_id", entry.getInstanceId());
+    record.put("exit_code", entry.getResult().getExitCode());
+    record.put("output", entry.getResult().getOutput(Integer.MAX_VALUE));
+    record.put("streamed_output_bytes", entry.getResult().getStreamedOutputBytes());
+    record.put("files", fileRecords(entry.getFiles()));
+    return record;
+  }
+
+  private static List<Map<String, Object>> fileRecords(List<SpooledFile> files) {
+    List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+    for (SpooledFile file : files) {
+      Map<String, Object> record = new LinkedHashMap<String, Object>();
+      record.put("path", file.getFile().getAbsolutePath());
+      record.put("size", file.getSize());
+      record.put("modified", file.getModified());
+      record.put("copy", file.isCopy());
+      records.add(record);
+    }
+    return records;
+  }
+
+  private Entry parseEntry(JsonNode record) {
+    List<SpooledFile> files = parseFiles(record.path("files"));
+    return new Entry(record.path("id").asText(), record.path("task").asText(),
+            record.path("instance_id").asText(),
+            record.path("exit_code").asInt(),
+            record.path("output").asText(),
+            record.path("streamed_output_bytes").asLong(-1),
+            files, files.isEmpty());
+  }
+
+  private static List<SpooledFile> parseFiles(JsonNode records) {
+    List<SpooledFile> files = new ArrayList<SpooledFile>();
+    for (JsonNode record : records) {
+      // records of older versions have the paths of copies only
+      if (record.isTextual()) {
+        File file = new File(record.asText());
+        files.add(new SpooledFile(file, file.length(), file.lastModified(), true));
+      } else
+        files.add(new SpooledFile(new File(record.path("path").asText()), record.path("size").asLong(),
+                record.path("modified").asLong(), record.path("copy").asBoolean()));
+    }
+    return files;
+  }
+
+  private void append(Map<String, Object> record) throws IOException {
+    if (journal == null)
+      journal = new FileOutputStream(journalFile, true);
+    journal.write((objectMapper.writeValueAsString(record) + "\n").getBytes("UTF-8"));
+    journal.getFD().sync();
+  }
+
+  /**
+   * Rewrites the journal with the pending entries only: written to a temporary file, fsync'd and renamed.
+   */
+  private void compact() throws IOException {
+    close();
+    File compacted = new File(directory, JOURNAL_FILE_NAME + ".tmp");
+    FileOutputStream out = new FileOutputStream(compacted);
+    try {
+      for (Entry entry : pending.values()) {
+        out.write((objectMapper.writeValueAsString(addRecord(entry)) + "\n").getBytes("UTF-8"));
+      }
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    // File.renameTo doesn't replace an existing file on Windows
+    if (!compacted.renameTo(journalFile) && !(journalFile.delete() && compacted.renameTo(journalFile)))
+      throw new IOException("Failed to replace spool journal [" + journalFile.getAbsolutePath() + "]");
+    numOfAcknowledgedRecords = 0;
+  }
+
+  private static void link(File source, File target) throws IOException {
+    File parent = target.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs())
+      throw new IOException("Failed to create directory [" + parent.getAbsolutePath() + "]");
+    try {
+      Files.createLink(target.toPath(), source.toPath());
+    } catch (IOException e) {
+      // another file system, or one without hard links
+      copy(source, target);
+    } catch (UnsupportedOperationException e) {
+      copy(source, target);
+    }
+  }
+
+  private static void copy(File source, File target) throws IOException {
+    FileInputStream in = new FileInputStream(source);
+    try {
+      FileOutputStream out = new FileOutputStream(target);
+      try {
+        FileChannel inChannel = in.getChannel();
+        FileChannel outChannel = out.getChannel();
+        long size = inChannel.size();
+        long position = 0;
+        while (position < size) {
+          position += inChannel.transferTo(position, size - position, outChannel);
+        }
+        outChannel.force(true);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    if (!target.setLastModified(source.lastModified()))
+      logger.warning("Failed to set time stamp of [" + target.getAbsolutePath() + "]");
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    if (!file.delete() && file.exists())
+      logger.warning("Failed to delete [" + file.getAbsolutePath() + "]");
+  }
+
+  public static class Entry {
+    private final String id;
+    private final String taskName;
+    private final String instanceId;
+    private final int exitCode;
+    private final String output;
+    private final long streamedOutputBytes;
+    private final boolean withoutFiles;
+    private volatile List<SpooledFile> files;
+
+    Entry(String id, String taskName, String instanceId, int exitCode, String output, long streamedOutputBytes,
+          List<SpooledFile> files, boolean withoutFiles) {
+      this.id = id;
+      this.taskName = taskName;
+      this.instanceId = instanceId;
+      this.exitCode = exitCode;
+      this.output = output;
+      this.streamedOutputBytes = streamedOutputBytes;
+      this.files = files;
+      this.withoutFiles = withoutFiles;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getTaskName() {
+      return taskName;
+    }
+
+    public String getInstanceId() {
+      return instanceId;
+    }
+
+    List<SpooledFile> getFiles() {
+      return files;
+    }
+
+    private void setFiles(List<SpooledFile> files) {
+      this.files = files;
+    }
+
+    /**
+     * @return the result, its files are the spooled ones.
+     */
+    public Client.TaskResult getResult() {
+      List<File> resultFiles = null;
+      if (!withoutFiles) {
+        resultFiles = new ArrayList<File>();
+        for (SpooledFile file : files) resultFiles.add(file.getFile());
+      }
+      return new Client.TaskResult(instanceId, exitCode, resultFiles, output, streamedOutputBytes);
+    }
+  }
+
+  /**
+   * A result file: a link or a copy in the spool directory, or a reference to the file the test wrote.
+   */
+  static class SpooledFile {
+    private final File file;
+    private final long size;
+    private final long modified;
+    private final boolean copy;
+
+    SpooledFile(File file, long size, long modified, boolean copy) {
+      this.file = file;
+      this.size = size;
+      this.modified = modified;
+      this.copy = copy;
+    }
+
+    File getFile() {
+      return file;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    long getModified() {
+      return modified;
+    }
+
+    boolean isCopy() {
+      return copy;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package com.practitest.xbot;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * One scheduler thread that times out the processes of all running tasks.
+ * <p>
+ * On timeout the whole process tree is terminated: the descendants are collected first (they are
+ * re-parented once the test process dies), asked to terminate, and killed forcibly when they are still
+ * alive after the grace period. Descendants are found with <code>ProcessHandle</code> when the JRE has it
+ * (Java 9+); older JREs only terminate the test process itself.
+ */
+public class TaskWatchdog {
+  private static final Logger logger = Logger.getLogger(TaskWatchdog.class.getName());
+
+  private static final long CHECK_INTERVAL_MILLIS = 100;
+  // after the forced kill, processes that don't go away are given up on
+  private static final long FORCED_KILL_WAIT_MILLIS = 5000;
+
+  private static final Method TO_HANDLE;
+  private static final Method DESCENDANTS;
+  private static final Method IS_ALIVE;
+  private static final Method DESTROY;
+  private static final Method DESTROY_FORCIBLY;
+
+  static {
+    Method toHandle = null, descendants = null, isAlive = null, destroy = null, destroyForcibly = null;
+    try {
+      Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+      toHandle = Process.class.getMethod("toHandle");
+      descendants = handleClass.getMethod("descendants");
+      isAlive = handleClass.getMethod("isAlive");
+      destroy = handleClass.getMethod("destroy");
+      destroyForcibly = handleClass.getMethod("destroyForcibly");
+    } catch (Exception e) {
+      logger.info("ProcessHandle isn't available, timed out tasks only terminate their own process");
+      toHandle = null;
+    }
+    TO_HANDLE = toHandle;
+    DESCENDANTS = descendants;
+    IS_ALIVE = isAlive;
+    DESTROY = destroy;
+    DESTROY_FORCIBLY = destroyForcibly;
+  }
+
+  private final ScheduledExecutorService executor;
+
+  public TaskWatchdog() {
+    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "task-watchdog");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // cancelled timeouts don't stay in the queue until they would have expired
+    executor.setRemoveOnCancelPolicy(true);
+    this.executor = executor;
+  }
+
+  /**
+   * Terminates the process tree when it runs longer than the timeout.
+   *
+   * @param gracePeriodMillis time between the terminate request and the forced kill.
+   */
+  public Watch watch(Process process, String name, long timeoutMillis, long gracePeriodMillis) {
+    Watch watch = new Watch(process, name, gracePeriodMillis);
+    watch.timeout = executor.schedule(watch.new Timeout(), timeoutMillis, TimeUnit.MILLISECONDS);
+    return watch;
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  public class Watch {
+    private final Process process;
+    private final String name;
+    private final long gracePeriodMillis;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile ScheduledFuture<?> timeout;
+    private volatile boolean timedOut = false;
+    private volatile long killMillis = -1;
+    private volatile int numOfProcesses = 0;
+
+    private Watch(Process process, String name, long gracePeriodMillis) {
+      this.process = process;
+      this.name = name;
+      this.gracePeriodMillis = gracePeriodMillis;
+    }
+
+    /**
+     * Stops watching a process that finished in time.
+     */
+    public void cancel() {
+      timeout.cancel(false);
+    }
+
+    public boolean isTimedOut() {
+      return timedOut;
+    }
+
+    /**
+     * Waits until the timed out process tree is gone.
+     *
+     * @return how long terminating it took, -1 when processes survived.
+     */
+    public long awaitKill() throws InterruptedException {
+      terminated.await(gracePeriodMillis + FORCED_KILL_WAIT_MILLIS + 1000, TimeUnit.MILLISECONDS);
+      return killMillis;
+    }
+
+    /**
+     * @return number of processes in the killed tree, the test process included.
+     */
+    public int getNumOfProcesses() {
+      return numOfProcesses;
+    }
+
+    private class Timeout implements Runnable {
+      public void run() {
+        timedOut = true;
+        final long start = System.currentTimeMillis();
+        final List<Object> descendants = descendants();
+        numOfProcesses = descendants.size() + 1;
+        logger.info("Timeout expired for [" + name + "], terminating " + numOfProcesses + " process(es)");
+        // children first, so the test process can't start new ones after its own termination
+        for (Object handle : descendants) invoke(DESTROY, handle);
+        process.destroy();
+        executor.schedule(new Runnable() {
+          private boolean forced = false;
+
+          public void run() {
+            long elapsed = System.currentTimeMillis() - start;
+            if (!isAnyAlive(descendants)) {
+              killMillis = elapsed;
+              logger.info("Terminated " + numOfProcesses + " process(es) of [" + name + "] in " + elapsed + " ms" +
+                      (forced ? " (killed forcibly)" : ""));
+              terminated.countDown();
+              return;
+            }
+            if (!forced && elapsed >= gracePeriodMillis) {
+              forced = true;
+              for (Object handle : descendants) invoke(DESTROY_FORCIBLY, handle);
+              process.destroyForcibly();
+            } else if (forced && elapsed >= gracePeriodMillis + FORCED_KILL_WAIT_MILLIS) {
+              logger.warning("Processes of [" + name + "] are still alive " + elapsed + " ms after the timeout");
+              terminated.countDown();
+              return;
+            }
+            executor.schedule(this, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+          }
+        }, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+      }
+
+      private List<Object> descendants() {
+        List<Object> handles = new ArrayList<Object>();
+        if (TO_HANDLE == null) return handles;
+        Object handle = invoke(TO_HANDLE, process);
+        if (handle == null) return handles;
+        Stream<?> stream = (Stream<?>)invoke(DESCENDANTS, handle);
+        if (stream != null) {
+          for (Object descendant : stream.toArray()) handles.add(descendant);
+        }
+        return handles;
+      }
+
+      private boolean isAnyAlive(List<Object> descendants) {
+        if (process.isAlive()) return true;
+        for (Object handle : descendants) {
+          if (Boolean.TRUE.equals(invoke(IS_ALIVE, handle))) return true;
+        }
+        return false;
+      }
+    }
+  }
+
+  private static Object invoke(Method method, Object target) {
+    try {
+      return method.invoke(target);
+    } catch (Exception e) {
+      logger.warning("Failed to call " + method.getName() + ": " + e.getMessage());
+      return null;
+    }
+  }
+}
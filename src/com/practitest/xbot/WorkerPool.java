@@ -0,0 +1,306 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Long-lived worker processes that run tests one after the other, so short tests don't pay
+ * for starting a process (and its interpreter or JVM) every time.
+ * <p>
+ * Workers are started like the test itself (same command line and working directory) with
+ * <code>XBOT_WORKER_MARKER</code> in their environment, and talk over stdin/stdout:
+ * <ul>
+ *   <li>when ready, the worker prints <code>MARKER ready</code>;</li>
+ *   <li>each test is requested with a line <code>instance_id TAB path_to_results TAB timeout_in_seconds</code>;</li>
+ *   <li>the worker prints the console output of the test, then <code>MARKER exit_code</code>; output that doesn't
+ *   end with a newline may share the line with it;</li>
+ *   <li>stdin is closed when the worker should exit.</li>
+ * </ul>
+ * Workers are kept per command line, recycled after a number of tests and stopped when idle for too long.
+ * When a worker can't be started the test is started as a normal process.
+ */
+public class WorkerPool {
+  private static final Logger logger = Logger.getLogger(WorkerPool.class.getName());
+
+  public static final String MARKER_ENVIRONMENT_VARIABLE = "XBOT_WORKER_MARKER";
+
+  private static final long START_TIMEOUT_MILLIS = 60000;
+  private static final long STOP_TIMEOUT_MILLIS = 2000;
+  // a command whose worker failed to start is run as a normal process for a while
+  private static final long START_FAILURE_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+  private final Pattern commands;
+  private final int maxUses;
+  private final long idleTimeoutMillis;
+  private final TaskWatchdog watchdog;
+  private final Map<String, Deque<Worker>> idleWorkers = new HashMap<String, Deque<Worker>>();
+  private final Map<String, Long> startFailures = new ConcurrentHashMap<String, Long>();
+  private final ScheduledExecutorService evictor;
+  private boolean stopped = false;
+
+  /**
+   * @param commands pattern of the <code>path_to_application</code> values that are run by workers.
+   */
+  public WorkerPool(Pattern commands, int maxUses, long idleTimeoutMillis, TaskWatchdog watchdog) {
+    this.commands = commands;
+    this.maxUses = maxUses;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.watchdog = watchdog;
+    this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Worker evictor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long interval = Math.max(idleTimeoutMillis / 4, 1000);
+    evictor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        evictIdleWorkers();
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return an idle or new worker for the command, null when the task should be run as a normal process.
+   */
+  public Worker acquire(String command, List<String> parameters, File workingDirectory) {
+    if (!commands.matcher(command).matches()) return null;
+    Long failedAt = startFailures.get(command);
+    if (failedAt != null && System.currentTimeMillis() - failedAt < START_FAILURE_BACKOFF_MILLIS) return null;
+    synchronized (idleWorkers) {
+      if (stopped) return null;
+      Deque<Worker> idle = idleWorkers.get(command);
+      while (idle != null && !idle.isEmpty()) {
+        Worker worker = idle.pollLast();
+        if (worker.process.isAlive()) return worker;
+        logger.warning("Idle worker for [" + command + "] exited");
+      }
+    }
+    try {
+      return start(command, parameters, workingDirectory);
+    } catch (Exception e) {
+      logger.warning("Failed to start a worker for [" + command + "], running it as a normal process: " + e.getMessage());
+      startFailures.put(command, System.currentTimeMillis());
+      return null;
+    }
+  }
+
+  /**
+   * Returns a worker after its test; workers that failed or reached their uses are stopped.
+   */
+  public void release(Worker worker) {
+    if (worker.isReusable() && worker.uses < maxUses) {
+      synchronized (idleWorkers) {
+        if (!stopped) {
+          worker.idleSince = System.currentTimeMillis();
+          Deque<Worker> idle = idleWorkers.get(worker.command);
+          if (idle == null) {
+            idle = new ArrayDeque<Worker>();
+            idleWorkers.put(worker.command, idle);
+          }
+          idle.addLast(worker);
+          return;
+        }
+      }
+    }
+    worker.stop();
+  }
+
+  /**
+   * @return number of idle workers.
+   */
+  public int getNumOfIdleWorkers() {
+    synchronized (idleWorkers) {
+      int count = 0;
+      for (Deque<Worker> idle : idleWorkers.values()) count += idle.size();
+      return count;
+    }
+  }
+
+  public void shutdown() {
+    evictor.shutdownNow();
+    List<Worker> workers = new ArrayList<Worker>();
+    synchronized (idleWorkers) {
+      stopped = true;
+      for (Deque<Worker> idle : idleWorkers.values()) workers.addAll(idle);
+      idleWorkers.clear();
+    }
+    for (Worker worker : workers) worker.stop();
+  }
+
+  private void evictIdleWorkers() {
+    List<Worker> evicted = new ArrayList<Worker>();
+    long now = System.currentTimeMillis();
+    synchronized (idleWorkers) {
+      for (Deque<Worker> idle : idleWorkers.values()) {
+        // the oldest idle workers are first, new work takes the last ones
+        while (!idle.isEmpty() && now - idle.peekFirst().idleSince >= idleTimeoutMillis)
+          evicted.add(idle.pollFirst());
+      }
+    }
+    for (Worker worker : evicted) {
+      logger.info("Stopping idle worker for [" + worker.command + "]");
+      worker.stop();
+    }
+  }
+
+  private Worker start(String command, List<String> parameters, File workingDirectory) throws IOException {
+    String marker = "xbot-worker-" + UUID.randomUUID();
+    ProcessBuilder processBuilder = new ProcessBuilder(parameters);
+    processBuilder.directory(workingDirectory);
+    processBuilder.redirectErrorStream(true);
+    processBuilder.environment().put(MARKER_ENVIRONMENT_VARIABLE, marker);
+    Process process = processBuilder.start();
+    Worker worker = new Worker(command, process, marker);
+    // a worker that doesn't get ready is killed, which ends the wait below
+    TaskWatchdog.Watch watch = watchdog.watch(process, "worker for " + command, START_TIMEOUT_MILLIS, STOP_TIMEOUT_MILLIS);
+    try {
+      String line;
+      while ((line = worker.readLine()) != null) {
+        if (line.trim().endsWith(marker + " ready")) {
+          logger.info("Started a worker for [" + command + "]");
+          return worker;
+        }
+      }
+    } finally {
+      watch.cancel();
+    }
+    worker.stop();
+    throw new IOException("worker exited before it was ready");
+  }
+
+  public static class Worker {
+    private final String command;
+    private final Process process;
+    private final String marker;
+    private final InputStream stdout;
+    private final OutputStream stdin;
+    private int uses = 0;
+    private long idleSince;
+    private volatile int exitCode = -1;
+    private volatile boolean completed = true;
+
+    private Worker(String command, Process process, String marker) {
+      this.command = command;
+      this.process = process;
+      this.marker = marker;
+      this.stdout = new BufferedInputStream(process.getInputStream());
+      this.stdin = process.getOutputStream();
+    }
+
+    public Process getProcess() {
+      return process;
+    }
+
+    /**
+     * Sends the test to the worker.
+     *
+     * @return its console output, ending when the worker reported the exit code.
+     */
+    public InputStream start(Client.Task task) throws IOException {
+      ++uses;
+      completed = false;
+      exitCode = -1;
+      String request = task.getInstanceId() + "\t" + task.getPathToTestResults() + "\t" + task.getTimeoutInSeconds() + "\n";
+      stdin.write(request.getBytes("UTF-8"));
+      stdin.flush();
+      return new ResponseStream();
+    }
+
+    /**
+     * @return exit code reported by the worker, -1 when it exited during the test.
+     */
+    public int getExitCode() {
+      return exitCode;
+    }
+
+    private boolean isReusable() {
+      return completed && process.isAlive();
+    }
+
+    private void stop() {
+      try {
+        stdin.close();
+        if (!process.waitFor(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) process.destroyForcibly();
+      } catch (Exception e) {
+        process.destroyForcibly();
+      }
+    }
+
+    /**
+     * @return line without its end of line, null at the end of the stream.
+     */
+    private String readLine() throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int c;
+      while ((c = stdout.read()) != -1 && c != '\n') line.write(c);
+      if (c == -1 && line.size() == 0) return null;
+      String text = line.toString("UTF-8");
+      return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    /**
+     * Console output of one test, read line by line so the marker isn't passed on.
+     */
+    private class ResponseStream extends InputStream {
+      private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+      private byte[] pending = new byte[0];
+      private int position = 0;
+      private boolean ended = false;
+
+      @Override
+      public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (position == pending.length && !nextLine()) return -1;
+        int count = Math.min(length, pending.length - position);
+        System.arraycopy(pending, position, buffer, offset, count);
+        position += count;
+        return count;
+      }
+
+      private boolean nextLine() throws IOException {
+        if (ended) return false;
+        line.reset();
+        int c;
+        while ((c = stdout.read()) != -1) {
+          line.write(c);
+          if (c == '\n') break;
+        }
+        if (line.size() == 0) {
+          // the worker died
+          ended = true;
+          return false;
+        }
+        pending = line.toByteArray();
+        position = 0;
+        String text = line.toString("UTF-8");
+        int markerStart = text.indexOf(marker + " ");
+        if (markerStart >= 0) {
+          String exitCodeText = text.substring(markerStart + marker.length() + 1).trim();
+          try {
+            exitCode = Integer.parseInt(exitCodeText);
+            completed = true;
+          } catch (NumberFormatException e) {
+            logger.warning("Worker for [" + command + "] reported an invalid exit code: " + exitCodeText);
+          }
+          ended = true;
+          // the last output of the test, when it didn't end with a newline
+          pending = text.substring(0, markerStart).getBytes("UTF-8");
+          return pending.length > 0;
+        }
+        return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.practitest.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers requests with queued responses and records the requests and their bodies.
+ */
+class StubTransport implements Transport {
+    final List<Request> requests = new ArrayList<Request>();
+    final List<byte[]> bodies = new ArrayList<byte[]>();
+    private final List<Response> responses = new ArrayList<Response>();
+
+    void respond(int statusCode, String body) throws IOException {
+        respond(statusCode, body.getBytes("UTF-8"), null);
+    }
+
+    void respond(final int statusCode, final byte[] body, String contentEncoding) {
+        final Map<String, String> headers = new HashMap<String, String>();
+        if (contentEncoding != null) headers.put("Content-Encoding", contentEncoding);
+        responses.add(new Response() {
+            public int getStatusCode() {
+                return statusCode;
+            }
+
+            public String getStatusLine() {
+                return "HTTP/1.1 " + statusCode;
+            }
+
+            public String getHeader(String name) {
+                return headers.get(name);
+            }
+
+            public InputStream getBody() {
+                return new ByteArrayInputStream(body);
+            }
+
+            public String getBodyAsString() throws IOException {
+                return new String(body, "UTF-8");
+            }
+
+            public void release() {
+            }
+        });
+    }
+
+    String url(int index) {
+        return requests.get(index).getUrl();
+    }
+
+    public Response execute(Request request) throws IOException {
+        requests.add(request);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (request.getEntity() != null) request.getEntity().writeRequest(body);
+        bodies.add(body.toByteArray());
+        return responses.remove(0);
+    }
+
+    public String describe() {
+        return "stub";
+    }
+}
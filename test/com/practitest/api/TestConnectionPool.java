@@ -0,0 +1,30 @@
+package com.practitest.api;
+
+import junit.framework.TestCase;
+
+public class TestConnectionPool extends TestCase {
+    public void testPoolIsKeptForSameServerAndProxy() {
+        ConnectionPool pool = new ConnectionPool("https://api.practitest.com", "proxy", "3128", "user", "secret", 4, 10, 60000);
+        try {
+            assertTrue(pool.isFor("https://api.practitest.com", "proxy", "3128", "user", "secret"));
+            assertFalse(pool.isFor("https://eu1-api.practitest.com", "proxy", "3128", "user", "secret"));
+            assertFalse(pool.isFor("https://api.practitest.com", "proxy", "8080", "user", "secret"));
+            assertFalse(pool.isFor("https://api.practitest.com", "proxy", "3128", "user", "changed"));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testLimitsCanBeChanged() {
+        ConnectionPool pool = new ConnectionPool("http://localhost", "", "", "", "", 4, 10, 60000);
+        try {
+            assertTrue(pool.describe().contains("max 4 per host, 10 total"));
+            // the total is never below the per host limit
+            pool.setLimits(12, 10, 30000);
+            assertTrue(pool.describe().contains("max 12 per host, 12 total"));
+            assertEquals(0, pool.getNumOfConnections());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.practitest.api;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class TestGzipTransfer extends TestCase {
+    private final StubTransport transport = new StubTransport();
+    private final Client client = new Client("http://localhost", "key", "1", "", "", "", "", "test");
+
+    @Override
+    protected void setUp() {
+        client.setTransport(transport);
+    }
+
+    public void testPollDecompressesResponse() throws Exception {
+        StringBuilder json = new StringBuilder("{\"instance\":{\"id\":\"15\"},\"test\":{\"id\":\"7\",\"padding\":\"");
+        for (int i = 0; i < 200; ++i) json.append("abcdefgh");
+        json.append("\"}}");
+        byte[] compressed = gzip(json.toString().getBytes("UTF-8"));
+        transport.respond(200, compressed, "gzip");
+
+        Client.Task task = client.nextTask();
+        assertEquals("15", task.getInstanceId());
+        assertEquals("gzip", transport.requests.get(0).getHeaders().get("Accept-Encoding"));
+        assertEquals(compressed.length, client.getCompressedTransferBytes());
+        assertEquals(json.length(), client.getUncompressedTransferBytes());
+    }
+
+    public void testPlainResponseIsNotCounted() throws Exception {
+        transport.respond(200, "[{\"instance\":{\"id\":\"15\"}},{\"instance\":{\"id\":\"16\"}}]".getBytes("UTF-8"), null);
+        assertEquals(2, client.nextTasks(2).size());
+        assertEquals(0, client.getUncompressedTransferBytes());
+    }
+
+    public void testConsoleOutputIsSentGzipped() throws Exception {
+        client.setGzipRequests(true);
+        byte[] output = new byte[4096];
+        transport.respond(200, new byte[0], null);
+        assertTrue(client.appendOutput("15", 0, output, output.length));
+
+        Transport.Request request = transport.requests.get(0);
+        assertEquals("gzip", request.getHeaders().get("Content-Encoding"));
+        assertEquals(output.length, gunzip(transport.bodies.get(0)).length);
+        assertEquals(output.length, client.getUncompressedTransferBytes());
+        assertEquals(transport.bodies.get(0).length, client.getCompressedTransferBytes());
+    }
+
+    public void testIncompressibleOutputIsSentAsIs() throws Exception {
+        client.setGzipRequests(true);
+        transport.respond(200, new byte[0], null);
+        assertTrue(client.appendOutput("15", 0, new byte[]{1, 2, 3}, 3));
+        assertNull(transport.requests.get(0).getHeaders().get("Content-Encoding"));
+        assertEquals(3, transport.bodies.get(0).length);
+    }
+
+    public void testRejectedGzipIsResentUncompressed() throws Exception {
+        client.setGzipRequests(true);
+        byte[] output = new byte[4096];
+        transport.respond(415, new byte[0], null);
+        transport.respond(200, new byte[0], null);
+        transport.respond(200, new byte[0], null);
+        assertTrue(client.appendOutput("15", 0, output, output.length));
+        assertTrue(client.appendOutput("15", output.length, output, output.length));
+
+        assertEquals(3, transport.requests.size());
+        assertNull(transport.requests.get(1).getHeaders().get("Content-Encoding"));
+        assertEquals(output.length, transport.bodies.get(1).length);
+        assertNull(transport.requests.get(2).getHeaders().get("Content-Encoding"));
+    }
+
+    public void testTotalsOutliveClient() throws Exception {
+        AtomicLong uncompressed = new AtomicLong();
+        AtomicLong compressed = new AtomicLong();
+        byte[] output = new byte[4096];
+        for (int i = 0; i < 2; ++i) {
+            // a new client for every settings change
+            Client recreated = new Client("http://localhost", "key", "1", "", "", "", "", "test");
+            recreated.setTransport(transport);
+            recreated.setGzipRequests(true);
+            recreated.setTransferCounters(uncompressed, compressed);
+            transport.respond(200, new byte[0], null);
+            assertTrue(recreated.appendOutput("15", 0, output, output.length));
+        }
+        assertEquals(2 * output.length, uncompressed.get());
+        assertEquals(transport.bodies.get(0).length + transport.bodies.get(1).length, compressed.get());
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        out.write(data);
+        out.close();
+        return compressed.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) decompressed.write(buffer, 0, read);
+        return decompressed.toByteArray();
+    }
+}
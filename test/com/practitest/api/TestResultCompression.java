@@ -0,0 +1,150 @@
+package com.practitest.api;
+
+import junit.framework.TestCase;
+import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
+import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public class TestResultCompression extends TestCase {
+    private final Client client = new Client("http://localhost", "key", "1", "", "", "", "", "test");
+    private File directory;
+    private File log;
+    private File screenshot;
+    private File sameName;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = File.createTempFile("compression", "");
+        directory.delete();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100000; ++i) text.append("line ").append(i).append('\n');
+        log = writeFile(new File(directory, "test.log"), text.toString().getBytes("UTF-8"));
+        byte[] random = new byte[300000];
+        new Random(7).nextBytes(random);
+        screenshot = writeFile(new File(new File(directory, "shots"), "screen.png"), random);
+        sameName = writeFile(new File(new File(directory, "shots"), "test.log"), "other log".getBytes("UTF-8"));
+    }
+
+    @Override
+    protected void tearDown() {
+        log.delete();
+        screenshot.delete();
+        sameName.delete();
+        screenshot.getParentFile().delete();
+        directory.delete();
+    }
+
+    public void testGzipPartPerFile() throws IOException {
+        RecordingStream body = new RecordingStream();
+        Map<String, byte[]> parts = send(Client.ResultCompression.GZIP, body, log, screenshot);
+        assertEquals(2, parts.size());
+        assertTrue(Arrays.equals(read(log), gunzip(parts.get("result_files[test.log.gz]"))));
+        assertTrue(Arrays.equals(read(screenshot), gunzip(parts.get("result_files[screen.png.gz]"))));
+        assertEquals(log.length() + screenshot.length(), client.getRawResultBytes());
+        assertTrue(body.largestWrite < screenshot.length());
+    }
+
+    public void testZipBundle() throws IOException {
+        RecordingStream body = new RecordingStream();
+        Map<String, byte[]> parts = send(Client.ResultCompression.ZIP, body, log, screenshot, sameName);
+        Map<String, byte[]> entries = unzip(parts.get("result_bundle"));
+        // files of one result may share a name
+        assertEquals(new HashSet<String>(Arrays.asList("test.log", "screen.png", "1_test.log")), entries.keySet());
+        assertTrue(Arrays.equals(read(log), entries.get("test.log")));
+        assertTrue(Arrays.equals(read(screenshot), entries.get("screen.png")));
+        assertTrue(Arrays.equals(read(sameName), entries.get("1_test.log")));
+        assertTrue(client.getCompressedResultBytes() < client.getRawResultBytes());
+        // written as it's compressed, not buffered into one write
+        assertTrue(body.largestWrite < log.length());
+        assertTrue(body.numOfWrites > 10);
+    }
+
+    /**
+     * @return data of the parts by name.
+     */
+    private Map<String, byte[]> send(Client.ResultCompression compression, RecordingStream body, File... files)
+            throws IOException {
+        List<Part> parts = new ArrayList<Part>();
+        client.addFileParts(parts, "", Arrays.asList(files), compression);
+        MultipartRequestEntity entity = new MultipartRequestEntity(parts.toArray(new Part[parts.size()]),
+                new HttpMethodParams());
+        // the compressed length isn't known up front, the request is sent chunked
+        assertEquals(-1, entity.getContentLength());
+        entity.writeRequest(body);
+
+        String boundary = entity.getContentType().substring(entity.getContentType().indexOf("boundary=") + 9);
+        String content = new String(body.toByteArray(), "ISO-8859-1");
+        Map<String, byte[]> data = new HashMap<String, byte[]>();
+        for (String part : content.split("--" + boundary)) {
+            int headersEnd = part.indexOf("\r\n\r\n");
+            if (headersEnd < 0) continue;
+            String headers = part.substring(0, headersEnd);
+            int nameStart = headers.indexOf("name=\"") + 6;
+            String name = headers.substring(nameStart, headers.indexOf('"', nameStart));
+            // the part ends with CRLF before the next boundary
+            data.put(name, part.substring(headersEnd + 4, part.length() - 2).getBytes("ISO-8859-1"));
+        }
+        return data;
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        return read(new GZIPInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static Map<String, byte[]> unzip(byte[] data) throws IOException {
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(data));
+        ZipEntry entry;
+        while ((entry = in.getNextEntry()) != null) entries.put(entry.getName(), read(in));
+        return entries;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+
+    private static File writeFile(File file, byte[] content) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Keeps the request body and the size of the largest write into it.
+     */
+    private static class RecordingStream extends ByteArrayOutputStream {
+        private int largestWrite = 0;
+        private int numOfWrites = 0;
+
+        @Override
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            largestWrite = Math.max(largestWrite, length);
+            ++numOfWrites;
+            super.write(bytes, offset, length);
+        }
+    }
+}
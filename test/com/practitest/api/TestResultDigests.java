@@ -0,0 +1,53 @@
+package com.practitest.api;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public class TestResultDigests extends TestCase {
+    private File directory;
+
+    @Override
+    protected void setUp() throws IOException {
+        directory = File.createTempFile("digests", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        File[] subdirectories = directory.listFiles();
+        if (subdirectories != null) {
+            for (File subdirectory : subdirectories) {
+                File[] files = subdirectory.listFiles();
+                if (files != null) for (File file : files) file.delete();
+                subdirectory.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testSameNameSizeAndTimeInOtherDirectory() throws IOException {
+        File first = writeFile(new File(new File(directory, "a"), "screenshot.png"), "first");
+        File second = writeFile(new File(new File(directory, "b"), "screenshot.png"), "other");
+        assertTrue(second.setLastModified(first.lastModified()));
+
+        ResultDigests digests = new ResultDigests(10);
+        assertEquals(ResultDigests.compute(first), digests.digest(first));
+        assertEquals(ResultDigests.compute(second), digests.digest(second));
+        assertFalse(digests.digest(first).equals(digests.digest(second)));
+        assertEquals(2, digests.size());
+    }
+
+    private static File writeFile(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
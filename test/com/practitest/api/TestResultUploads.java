@@ -0,0 +1,87 @@
+package com.practitest.api;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TestResultUploads extends TestCase {
+    private final StubTransport transport = new StubTransport();
+    private final Client client = new Client("http://localhost", "key", "1", "", "", "", "", "test");
+
+    @Override
+    protected void setUp() {
+        client.setTransport(transport);
+    }
+
+    public void testUploadSucceedsOn200() throws Exception {
+        transport.respond(200, "");
+        client.uploadResult(result("15"));
+        assertTrue(transport.url(0), transport.url(0).contains("upload_test_result"));
+    }
+
+    public void testClientErrorFailsUpload() throws Exception {
+        transport.respond(401, "unauthorized");
+        try {
+            client.uploadResult(result("15"));
+            fail("a rejected result must not count as uploaded");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("401"));
+        }
+    }
+
+    public void testBatchStatusesOfEachResult() throws Exception {
+        Client.TaskResult accepted = result("15");
+        Client.TaskResult rejected = result("16");
+        Client.TaskResult missing = result("17");
+        transport.respond(200, "{\"results\": [{\"instance_id\": \"15\", \"status\": \"ok\"}," +
+                " {\"instance_id\": \"16\", \"status\": \"error\", \"error\": \"closed\"}]}");
+
+        List<Client.TaskResult> failed = client.uploadResults(Arrays.asList(accepted, rejected, missing));
+        // an instance the server didn't mention counts as failed
+        assertEquals(Arrays.asList(rejected, missing), failed);
+        assertEquals(1, transport.requests.size());
+        assertTrue(transport.url(0), transport.url(0).contains("upload_test_results.json"));
+        String body = new String(transport.bodies.get(0), "UTF-8");
+        assertTrue(body.contains("results[2][instance_id]"));
+    }
+
+    public void testUnsupportedBatchFallsBackToSingleUploads() throws Exception {
+        transport.respond(404, "not found");
+        transport.respond(200, "");
+        transport.respond(500, "error");
+        transport.respond(200, "");
+        transport.respond(200, "");
+
+        Client.TaskResult second = result("16");
+        assertEquals(Collections.singletonList(second), client.uploadResults(Arrays.asList(result("15"), second)));
+        assertEquals(3, transport.requests.size());
+        assertTrue(transport.url(1), transport.url(1).contains("upload_test_result.json"));
+        assertTrue(transport.url(1), transport.url(1).contains("instance_id=15"));
+        assertTrue(transport.url(2), transport.url(2).contains("instance_id=16"));
+
+        // not asked again
+        assertTrue(client.uploadResults(Arrays.asList(result("17"), result("18"))).isEmpty());
+        assertEquals(5, transport.requests.size());
+        assertFalse(transport.url(3).contains("upload_test_results"));
+    }
+
+    public void testClientErrorFailsWholeBatch() throws Exception {
+        transport.respond(403, "forbidden");
+        List<Client.TaskResult> results = Arrays.asList(result("15"), result("16"));
+        assertEquals(results, client.uploadResults(results));
+        assertEquals(1, transport.requests.size());
+
+        // the batch call is still used
+        transport.respond(200, "{\"results\": [{\"instance_id\": \"15\", \"status\": \"ok\"}," +
+                " {\"instance_id\": \"16\", \"status\": \"ok\"}]}");
+        assertTrue(client.uploadResults(results).isEmpty());
+        assertTrue(transport.url(1), transport.url(1).contains("upload_test_results"));
+    }
+
+    private static Client.TaskResult result(String instanceId) {
+        return new Client.TaskResult(instanceId, 0, Collections.<File>emptyList(), "output");
+    }
+}
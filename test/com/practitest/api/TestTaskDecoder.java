@@ -0,0 +1,62 @@
+package com.practitest.api;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+public class TestTaskDecoder extends TestCase {
+    private static final String DOCUMENT = "{\"instance\":{\"id\":15,\"custom\":{\"a\":[1,{\"b\":2}]},\"timeout_in_seconds\":\"60\"}," +
+            "\"extra\":[{\"instance\":{\"id\":\"nested\"}}]," +
+            "\"test\":{\"id\":\"7\",\"path_to_application\":\"run.sh\",\"path_to_results\":\"out\"," +
+            "\"num_of_files_to_upload\":3,\"results_include\":\"**/*.xml\",\"results_exclude\":null}," +
+            "\"testSet\":{\"name\":\"Nightly\"}}";
+
+    private final TaskDecoder decoder = new TaskDecoder(new JsonFactory());
+
+    public void testDecodesTaskAndSkipsUnknownFields() throws IOException {
+        Client.Task task = decoder.decode(stream(DOCUMENT));
+        assertEquals("15", task.getInstanceId());
+        assertEquals("Test id:7Suite:Nightly", task.getDescription());
+        assertEquals("run.sh", task.getPathToTestApplication());
+        assertEquals("out", task.getPathToTestResults());
+        assertEquals(3, task.getNumOfFilesToUpload());
+        assertEquals(60, task.getTimeoutInSeconds());
+        assertEquals("**/*.xml", task.getResultsInclude());
+        assertNull(task.getResultsExclude());
+    }
+
+    public void testDocumentWithoutInstanceIsNoTask() throws IOException {
+        assertNull(decoder.decode(stream("{\"error\":{\"message\":\"no tests\"}}")));
+        assertNull(decoder.decode(stream("")));
+    }
+
+    public void testDecodesArraysAndConsecutiveDocuments() throws IOException {
+        List<Client.Task> tasks = decoder.decodeAll(stream("[" + DOCUMENT + ",{},{\"instance\":{\"id\":\"16\"}}]"));
+        assertEquals(2, tasks.size());
+        assertEquals("15", tasks.get(0).getInstanceId());
+        assertEquals("16", tasks.get(1).getInstanceId());
+        assertEquals("Test id:Suite:", tasks.get(1).getDescription());
+        assertEquals(0, tasks.get(1).getTimeoutInSeconds());
+
+        tasks = decoder.decodeAll(stream(DOCUMENT + "\n{\"instance\":{\"id\":\"17\"}}\n"));
+        assertEquals(2, tasks.size());
+        assertEquals("17", tasks.get(1).getInstanceId());
+    }
+
+    public void testTruncatedListFails() {
+        try {
+            decoder.decodeAll(stream("[" + DOCUMENT));
+            fail("truncated list was decoded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static InputStream stream(String json) throws IOException {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,56 @@
+package com.practitest.api;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class TestTaskLeases extends TestCase {
+    private final StubTransport transport = new StubTransport();
+    private final Client client = new Client("http://localhost", "key", "1", "", "", "", "", "test");
+
+    @Override
+    protected void setUp() {
+        client.setTransport(transport);
+    }
+
+    public void testBatchLease() throws Exception {
+        transport.respond(200, "[{\"instance\":{\"id\":\"15\"}},{\"instance\":{\"id\":\"16\"}}]");
+        List<Client.Task> tasks = client.nextTasks(3);
+        assertEquals(2, tasks.size());
+        assertEquals("16", tasks.get(1).getInstanceId());
+        assertTrue(transport.url(0), transport.url(0).contains("next_tests.json"));
+        assertTrue(transport.url(0), transport.url(0).contains("&max=3"));
+    }
+
+    public void testUnsupportedBatchLeaseFallsBackToSingleTask() throws Exception {
+        transport.respond(501, "not implemented");
+        transport.respond(200, "{\"instance\":{\"id\":\"15\"}}");
+        transport.respond(200, "{}");
+
+        List<Client.Task> tasks = client.nextTasks(3);
+        assertEquals(1, tasks.size());
+        assertEquals("15", tasks.get(0).getInstanceId());
+        assertTrue(transport.url(1), transport.url(1).contains("next_test.json"));
+
+        // not asked again, an empty queue is an empty list
+        assertTrue(client.nextTasks(3).isEmpty());
+        assertEquals(3, transport.requests.size());
+        assertTrue(transport.url(2), transport.url(2).contains("next_test.json"));
+    }
+
+    public void testClientErrorIsAnEmptyLease() throws Exception {
+        transport.respond(401, "unauthorized");
+        assertTrue(client.nextTasks(3).isEmpty());
+        assertEquals(1, transport.requests.size());
+    }
+
+    public void testServerErrorFailsLease() throws Exception {
+        transport.respond(503, "unavailable");
+        try {
+            client.nextTasks(3);
+            fail("5xx has to back off the poller");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("503"));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.practitest.api;
+
+import junit.framework.TestCase;
+import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
+import org.apache.commons.httpclient.methods.multipart.Part;
+import org.apache.commons.httpclient.methods.multipart.StringPart;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+
+public class TestTransport extends TestCase {
+    private Server server;
+    private String url;
+
+    @Override
+    protected void setUp() throws Exception {
+        server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch)
+                    throws IOException {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                InputStream in = request.getInputStream();
+                byte[] buffer = new byte[4096];
+                int read;
+                while ((read = in.read(buffer)) != -1) body.write(buffer, 0, read);
+                response.setStatus(target.equals("/missing") ? 404 : 200);
+                response.setContentType("text/plain");
+                // the HTTP/2 transport escapes [] in the query, commons-httpclient doesn't
+                String query = request.getQueryString() != null ? URLDecoder.decode(request.getQueryString(), "UTF-8") : null;
+                response.getWriter().print(request.getMethod() + " " + target + "?" + query +
+                        " " + request.getHeader("Authorization") + " " + body.size());
+                ((Request)request).setHandled(true);
+            }
+        });
+        server.start();
+        url = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.stop();
+    }
+
+    public void testCommonsTransport() throws IOException {
+        ConnectionPool pool = new ConnectionPool(url, "", "", "", "", 2, 2, 60000);
+        try {
+            checkTransport(new CommonsTransport(pool, "", "", "", "", 5000));
+            assertEquals(3, pool.getNumOfRequests());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testHttp2Transport() throws IOException {
+        Transport transport = Client.createHttp2Transport("", "", "", "");
+        // built from src-java11, not there on older JDKs
+        if (transport == null) return;
+        checkTransport(transport);
+        assertTrue(transport.describe(), transport.describe().contains("requests: 3"));
+    }
+
+    private void checkTransport(Transport transport) throws IOException {
+        Transport.Request get = Transport.Request.get(url + "/api/next_test.json?ids[]=1");
+        get.setHeader("Authorization", "custom key");
+        Transport.Response response = transport.execute(get);
+        try {
+            assertEquals(200, response.getStatusCode());
+            assertEquals("GET /api/next_test.json?ids[]=1 custom key 0", response.getBodyAsString());
+        } finally {
+            response.release();
+        }
+
+        Transport.Request post = Transport.Request.post(url + "/api/results.json");
+        post.setEntity(new MultipartRequestEntity(new Part[]{new StringPart("result", "output", "UTF-8")},
+                new HttpMethodParams()));
+        response = transport.execute(post);
+        try {
+            assertEquals(200, response.getStatusCode());
+            assertEquals("POST /api/results.json?null null " + post.getEntity().getContentLength(),
+                    response.getBodyAsString());
+        } finally {
+            response.release();
+        }
+
+        response = transport.execute(Transport.Request.get(url + "/missing"));
+        try {
+            assertEquals(404, response.getStatusCode());
+            assertTrue(response.getStatusLine(), response.getStatusLine().contains("404"));
+        } finally {
+            response.release();
+        }
+    }
+}
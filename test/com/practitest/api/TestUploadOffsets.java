@@ -0,0 +1,76 @@
+package com.practitest.api;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public class TestUploadOffsets extends TestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws IOException {
+        file = File.createTempFile("offsets", ".properties");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    public void testOffsetsSurviveRestart() {
+        UploadOffsets offsets = new UploadOffsets(file);
+        offsets.put("1/C:\\results\\a b=c.log/10/5", 4);
+        offsets.put("1/C:\\results\\a b=c.log/10/5", 8);
+        offsets.put("2/other.log/10/5", 10);
+        offsets.remove("2/other.log/10/5");
+
+        UploadOffsets reloaded = new UploadOffsets(file);
+        assertEquals(8, reloaded.get("1/C:\\results\\a b=c.log/10/5"));
+        assertFalse(reloaded.isComplete("2/other.log/10/5", 10));
+        assertEquals(0, reloaded.get("2/other.log/10/5"));
+    }
+
+    public void testAppendedLinesAreCompacted() {
+        UploadOffsets offsets = new UploadOffsets(file);
+        offsets.put("first", 1);
+        long size = 0;
+        for (int i = 0; i < 1000; ++i) {
+            offsets.put("key", i);
+            size = Math.max(size, file.length());
+        }
+        assertTrue("file grew to " + size + " bytes", size < 10000);
+        assertEquals(999, new UploadOffsets(file).get("key"));
+        assertEquals(1, new UploadOffsets(file).get("first"));
+    }
+
+    public void testKeyHasThePath() throws IOException {
+        File directory = new File(file.getPath() + ".d");
+        File first = writeFile(new File(new File(directory, "a"), "screenshot.png"));
+        File second = writeFile(new File(new File(directory, "b"), "screenshot.png"));
+        try {
+            assertTrue(second.setLastModified(first.lastModified()));
+            assertFalse(UploadOffsets.key("1", first).equals(UploadOffsets.key("1", second)));
+        } finally {
+            first.delete();
+            second.delete();
+            first.getParentFile().delete();
+            second.getParentFile().delete();
+            directory.delete();
+        }
+    }
+
+    private static File writeFile(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write("content");
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,114 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+import com.practitest.api.Transport;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class TestConsoleStreamer extends TestCase {
+    private final CountDownLatch requestStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseRequest = new CountDownLatch(1);
+    private final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+    private File source;
+
+    @Override
+    protected void setUp() throws IOException {
+        source = File.createTempFile("console", ".log");
+        FileOutputStream out = new FileOutputStream(source);
+        try {
+            out.write("0123456789".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() {
+        releaseRequest.countDown();
+        source.delete();
+    }
+
+    public void testChunksAreSentInOrder() throws Exception {
+        releaseRequest.countDown();
+        ConsoleStreamer streamer = new ConsoleStreamer(client(), "1", source, 4);
+        assertEquals(10, streamer.finish());
+        assertEquals("0123456789", streamed.toString("UTF-8"));
+    }
+
+    public void testSlowAppendDoesNotBlockAbort() throws Exception {
+        final ConsoleStreamer streamer = new ConsoleStreamer(client(), "1", source, 4);
+        Thread sender = new Thread(streamer);
+        sender.start();
+        assertTrue(requestStarted.await(5, TimeUnit.SECONDS));
+
+        long startedAt = System.currentTimeMillis();
+        streamer.abort();
+        assertTrue(System.currentTimeMillis() - startedAt < 1000);
+
+        releaseRequest.countDown();
+        sender.join(5000);
+        assertEquals(-1, streamer.finish());
+    }
+
+    public void testMissingSourceFailsStreaming() throws Exception {
+        releaseRequest.countDown();
+        ConsoleStreamer streamer = new ConsoleStreamer(client(), "1", source, 4);
+        assertTrue(source.delete());
+        // a scheduled run may come before the capture created the file
+        streamer.run();
+        assertEquals(-1, streamer.finish());
+        assertEquals(0, streamed.size());
+    }
+
+    private Client client() {
+        Client client = new Client("http://localhost", "key", "1", "", "", "", "", "test");
+        client.setTransport(new Transport() {
+            public Response execute(Request request) throws IOException {
+                requestStarted.countDown();
+                try {
+                    releaseRequest.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+                request.getEntity().writeRequest(streamed);
+                return new Response() {
+                    public int getStatusCode() {
+                        return 200;
+                    }
+
+                    public String getStatusLine() {
+                        return "HTTP/1.1 200 OK";
+                    }
+
+                    public String getHeader(String name) {
+                        return null;
+                    }
+
+                    public InputStream getBody() {
+                        return new ByteArrayInputStream(new byte[0]);
+                    }
+
+                    public String getBodyAsString() {
+                        return "";
+                    }
+
+                    public void release() {
+                    }
+                };
+            }
+
+            public String describe() {
+                return "stub";
+            }
+        });
+        return client;
+    }
+}
@@ -0,0 +1,53 @@
+package com.practitest.xbot;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class TestEventLog extends TestCase {
+    public void testNewestEventsFirstWithinCapacity() {
+        EventLog log = new EventLog(4, 1024 * 1024);
+        for (int i = 1; i <= 6; ++i) log.add(EventLog.Level.INFO, "Slot #1", "event " + i);
+        String rendered = render(log);
+        assertTrue(rendered.indexOf("Slot #1: event 6") < rendered.indexOf("event 3"));
+        assertFalse(rendered.contains("event 2"));
+        assertEquals(4, count(rendered, "<p>"));
+    }
+
+    public void testBudgetDropsOldestEvents() {
+        EventLog log = new EventLog(16, 50);
+        log.add(EventLog.Level.INFO, null, "0123456789");
+        log.add(EventLog.Level.WARNING, null, "abcdefghij");
+        log.add(EventLog.Level.ERROR, null, "ABCDEFGHIJ");
+        String rendered = render(log);
+        assertFalse(rendered.contains("0123456789"));
+        assertTrue(rendered.contains("WARNING: abcdefghij"));
+        assertTrue(rendered.contains("ERROR: ABCDEFGHIJ"));
+    }
+
+    public void testLargeDetailIsCutAndEscaped() {
+        EventLog log = new EventLog(16, 1000);
+        StringBuilder output = new StringBuilder("<b>");
+        for (int i = 0; i < 1000; ++i) output.append('x');
+        log.add(EventLog.Level.INFO, "Slot #2", "Task [t] output", output.toString());
+        String rendered = render(log);
+        assertTrue(rendered.contains("Slot #2: Task [t] output: [&lt;b&gt;xxx"));
+        assertTrue(rendered.contains("&lt;...&gt;]"));
+        assertTrue(rendered.length() < 500);
+    }
+
+    private static String render(EventLog log) {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        log.render(out);
+        out.flush();
+        return text.toString();
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i != -1; i = text.indexOf(part, i + 1)) ++count;
+        return count;
+    }
+}
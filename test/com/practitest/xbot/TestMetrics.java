@@ -0,0 +1,67 @@
+package com.practitest.xbot;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+public class TestMetrics extends TestCase {
+    public void testHistogramBucketsAreCumulativeInSeconds() {
+        Metrics metrics = new Metrics();
+        Metrics.Histogram histogram = metrics.histogram("test_duration_seconds", "Test durations");
+        histogram.record(3);
+        histogram.record(10);
+        histogram.record(7200000);
+        String rendered = render(metrics);
+        assertTrue(rendered.contains("# TYPE test_duration_seconds histogram\n"));
+        assertTrue(rendered.contains("test_duration_seconds_bucket{le=\"0.005\"} 1\n"));
+        assertTrue(rendered.contains("test_duration_seconds_bucket{le=\"0.01\"} 2\n"));
+        assertTrue(rendered.contains("test_duration_seconds_bucket{le=\"3600\"} 2\n"));
+        assertTrue(rendered.contains("test_duration_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(rendered.contains("test_duration_seconds_sum 7200.013\n"));
+        assertTrue(rendered.contains("test_duration_seconds_count 3\n"));
+    }
+
+    public void testLabeledCounterRendersUsedSeries() {
+        Metrics metrics = new Metrics();
+        Metrics.Counter polls = metrics.counter("test_polls_total", "Polls", "result", "task", "empty");
+        polls.increment(1);
+        polls.increment(1);
+        String rendered = render(metrics);
+        assertTrue(rendered.contains("test_polls_total{result=\"empty\"} 2\n"));
+        assertFalse(rendered.contains("result=\"task\""));
+    }
+
+    public void testGaugeIsReadWhenRendered() {
+        Metrics metrics = new Metrics();
+        final int[] value = {1};
+        metrics.gauge("test_queue_length", "Queue length", new Metrics.Gauge() {
+            public double value() {
+                return value[0];
+            }
+        });
+        value[0] = 5;
+        assertTrue(render(metrics).contains("test_queue_length 5\n"));
+    }
+
+    public void testCounterOfTotalKeptElsewhere() {
+        Metrics metrics = new Metrics();
+        final long[] total = {42};
+        metrics.counter("test_bytes_total", "Bytes", new Metrics.Gauge() {
+            public double value() {
+                return total[0];
+            }
+        });
+        String rendered = render(metrics);
+        assertTrue(rendered.contains("# TYPE test_bytes_total counter\n"));
+        assertTrue(rendered.contains("test_bytes_total 42\n"));
+    }
+
+    private static String render(Metrics metrics) {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        metrics.render(out);
+        out.flush();
+        return text.toString();
+    }
+}
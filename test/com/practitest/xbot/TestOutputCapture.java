@@ -0,0 +1,85 @@
+package com.practitest.xbot;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+
+public class TestOutputCapture extends TestCase {
+    public void testShortOutputIsKeptWhole() {
+        OutputCapture capture = new OutputCapture(new ByteArrayInputStream("hello\nworld\n".getBytes()), 4, 8, null);
+        capture.run();
+        assertEquals("hello\nworld\n", capture.getOutput());
+        assertEquals(12, capture.getTotalBytes());
+    }
+
+    public void testLongOutputKeepsHeadAndTail() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; ++i) {
+            sb.append(i).append('\n');
+        }
+        String output = sb.toString();
+        OutputCapture capture = new OutputCapture(new ByteArrayInputStream(output.getBytes()), 100, 1000, null);
+        capture.run();
+        String captured = capture.getOutput();
+        assertTrue(captured.startsWith(output.substring(0, 100)));
+        assertTrue(captured.endsWith(output.substring(output.length() - 1000)));
+        assertTrue(captured.contains("<... " + (output.length() - 1100) + " bytes skipped ...>"));
+        assertEquals(output.substring(output.length() - 1000), capture.getTail());
+    }
+
+    public void testTailRingWrapsAcrossSmallWrites() {
+        OutputCapture capture = new OutputCapture(new ByteArrayInputStream(new byte[0]), 2, 5, null);
+        byte[] data = "abcdefghijklmnop".getBytes();
+        for (int i = 0; i < data.length; i += 3) {
+            byte[] chunk = new byte[3];
+            int length = Math.min(3, data.length - i);
+            System.arraycopy(data, i, chunk, 0, length);
+            capture.append(chunk, length);
+        }
+        assertEquals("lmnop", capture.getTail());
+        assertTrue(capture.getOutput().startsWith("ab"));
+    }
+
+    public void testSpillFileHasWholeStream() throws Exception {
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        File spillFile = File.createTempFile("console", ".log");
+        try {
+            OutputCapture capture = new OutputCapture(new ByteArrayInputStream(data), 10, 10, spillFile);
+            capture.run();
+            assertEquals(data.length, spillFile.length());
+        } finally {
+            spillFile.delete();
+        }
+    }
+
+    public void testFailedSpillFileIsDroppedAndStreamDrained() throws Exception {
+        byte[] data = new byte[100000];
+        File spillFile = File.createTempFile("console", ".log");
+        try {
+            OutputCapture capture = new OutputCapture(new ByteArrayInputStream(data), 10, 10, spillFile) {
+                @Override
+                OutputStream openSpill(File file) throws IOException {
+                    // fails like a full disk after the first buffer
+                    return new FilterOutputStream(new FileOutputStream(file)) {
+                        private int writes = 0;
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            if (++writes > 1) throw new IOException("No space left on device");
+                            out.write(b, off, len);
+                        }
+                    };
+                }
+            };
+            capture.run();
+            assertEquals(data.length, capture.getTotalBytes());
+            assertNull(capture.getSpillFile());
+            assertFalse(spillFile.exists());
+        } finally {
+            spillFile.delete();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.practitest.xbot;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class TestPollScheduler extends TestCase {
+    public void testExponentialBackoffUpToCeiling() {
+        PollScheduler scheduler = new PollScheduler(500, 3000, 0);
+        assertEquals(500, scheduler.onEmptyQueue());
+        assertEquals(1000, scheduler.onEmptyQueue());
+        assertEquals(2000, scheduler.onFailure());
+        assertEquals(3000, scheduler.onEmptyQueue());
+        assertEquals(3000, scheduler.onEmptyQueue());
+    }
+
+    public void testTaskResetsBackoff() {
+        PollScheduler scheduler = new PollScheduler(500, 3000, 0);
+        scheduler.onEmptyQueue();
+        scheduler.onEmptyQueue();
+        assertEquals(0, scheduler.onTaskTaken());
+        assertEquals(500, scheduler.onEmptyQueue());
+    }
+
+    public void testJitterStaysWithinBounds() {
+        PollScheduler scheduler = new PollScheduler(1000, 60000, 20, new Random(42));
+        long expected = 1000;
+        for (int i = 0; i < 10; ++i) {
+            long delay = scheduler.onEmptyQueue();
+            assertTrue("delay " + delay + " below floor", delay >= 1000);
+            assertTrue("delay " + delay + " above ceiling", delay <= 60000);
+            assertTrue("delay " + delay + " too far from " + expected, Math.abs(delay - expected) <= expected / 5);
+            expected = Math.min(60000, expected * 2);
+        }
+    }
+}
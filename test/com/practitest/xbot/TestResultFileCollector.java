@@ -0,0 +1,67 @@
+package com.practitest.xbot;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.List;
+
+public class TestResultFileCollector extends TestCase {
+    private File directory;
+
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("results", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        delete(directory);
+    }
+
+    public void testKeepsOldestFilesInOrder() throws Exception {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; ++i)
+            writeFile(new File(directory, "file" + i + ".txt"), now - (i * 10000));
+        writeFile(new File(directory, "nested/old.txt"), now - 1000000);
+
+        List<File> files = new ResultFileCollector(directory, 3, null, null).collect();
+        assertEquals(3, files.size());
+        assertEquals("file9.txt", files.get(0).getName());
+        assertEquals("file8.txt", files.get(1).getName());
+        assertEquals("file7.txt", files.get(2).getName());
+    }
+
+    public void testIncludeAndExcludePatterns() throws Exception {
+        long now = System.currentTimeMillis();
+        writeFile(new File(directory, "top.png"), now - 4000);
+        writeFile(new File(directory, "shots/a.png"), now - 3000);
+        writeFile(new File(directory, "shots/b.txt"), now - 2000);
+        writeFile(new File(directory, "tmp/c.png"), now - 1000);
+
+        List<File> files = new ResultFileCollector(directory, 10, "**.png", "tmp").collect();
+        assertEquals(2, files.size());
+        assertEquals("top.png", files.get(0).getName());
+        assertEquals("a.png", files.get(1).getName());
+    }
+
+    private static void writeFile(File file, long lastModified) throws IOException {
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(file.getName());
+        } finally {
+            writer.close();
+        }
+        assertTrue(file.setLastModified(lastModified));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,162 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+import com.practitest.api.Transport;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TestResultFileWatcher extends TestCase {
+    private final List<String> uploadedNames = Collections.synchronizedList(new ArrayList<String>());
+    private File directory;
+
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("results", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        delete(directory);
+    }
+
+    public void testUploadedFilesStayInResult() throws Exception {
+        ResultFileWatcher watcher = new ResultFileWatcher(directory, new ResultFileCollector(directory, 1, null, null),
+                client(), "15", 1, 100);
+        watcher.start(BlockingThreads.platform());
+        writeFile(new File(directory, "early.txt"), "early");
+        waitForUploads(1);
+
+        // older than the uploaded file, the collector alone would pick it instead
+        File late = writeFile(new File(directory, "late.txt"), "late");
+        assertTrue(late.setLastModified(System.currentTimeMillis() - 3600000));
+        List<File> files = watcher.finish();
+        assertEquals(Collections.singletonList("early.txt"), uploadedNames);
+        assertEquals(1, files.size());
+        assertEquals("early.txt", files.get(0).getName());
+    }
+
+    public void testOtherFilesAreAddedOldestFirst() throws Exception {
+        ResultFileWatcher watcher = new ResultFileWatcher(directory, new ResultFileCollector(directory, 3, null, null),
+                null, "15", 3, 100);
+        watcher.start(BlockingThreads.platform());
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 5; ++i)
+            assertTrue(writeFile(new File(directory, "file" + i + ".txt"), "result").setLastModified(now - i * 10000));
+        Thread.sleep(200);
+        List<File> files = watcher.finish();
+        assertEquals(3, files.size());
+        assertEquals("file4.txt", files.get(0).getName());
+        assertEquals("file2.txt", files.get(2).getName());
+    }
+
+    public void testLostEventsFallBackToScan() throws Exception {
+        ResultFileWatcher watcher = new ResultFileWatcher(directory, new ResultFileCollector(directory, 10, null, null),
+                null, "15", 10, 100);
+        // more events than a watch key queues before the watcher drains it
+        for (int i = 0; i < 1000; ++i)
+            writeFile(new File(directory, "file" + i + ".txt"), "result");
+        watcher.start(BlockingThreads.platform());
+        assertNull(watcher.finish());
+    }
+
+    public void testNewDirectoriesAreWatched() throws Exception {
+        ResultFileWatcher watcher = new ResultFileWatcher(directory, new ResultFileCollector(directory, 10, "**.png", null),
+                null, "15", 10, 100);
+        watcher.start(BlockingThreads.platform());
+        // written right away, possibly before the new directories are registered
+        writeFile(new File(directory, "shots/first/a.png"), "a");
+        Thread.sleep(200);
+        writeFile(new File(directory, "shots/first/b.png"), "b");
+        writeFile(new File(directory, "shots/c.txt"), "c");
+        Thread.sleep(200);
+        List<String> names = new ArrayList<String>();
+        for (File file : watcher.finish()) names.add(file.getName());
+        Collections.sort(names);
+        assertEquals(Arrays.asList("a.png", "b.png"), names);
+    }
+
+    private void waitForUploads(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (uploadedNames.size() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertEquals(count, uploadedNames.size());
+    }
+
+    /**
+     * Confirms every chunk of <code>upload_result_file_chunk</code> and records the uploaded names.
+     */
+    private Client client() {
+        Client client = new Client("http://localhost", "key", "1", "", "", "", "", "test");
+        client.setChunkedUpload(0, 1024, null);
+        client.setTransport(new Transport() {
+            public Response execute(Request request) throws IOException {
+                request.getEntity().writeRequest(new ByteArrayOutputStream());
+                String query = URLDecoder.decode(request.getUrl().substring(request.getUrl().indexOf('?') + 1), "UTF-8");
+                String name = null;
+                long size = 0;
+                for (String parameter : query.split("&")) {
+                    if (parameter.startsWith("file_name=")) name = parameter.substring("file_name=".length());
+                    if (parameter.startsWith("file_size=")) size = Long.parseLong(parameter.substring("file_size=".length()));
+                }
+                uploadedNames.add(name);
+                final byte[] body = ("{\"offset\": " + size + "}").getBytes("UTF-8");
+                return new Response() {
+                    public int getStatusCode() {
+                        return 200;
+                    }
+
+                    public String getStatusLine() {
+                        return "HTTP/1.1 200 OK";
+                    }
+
+                    public String getHeader(String name) {
+                        return null;
+                    }
+
+                    public InputStream getBody() {
+                        return new ByteArrayInputStream(body);
+                    }
+
+                    public String getBodyAsString() throws IOException {
+                        return new String(body, "UTF-8");
+                    }
+
+                    public void release() {
+                    }
+                };
+            }
+
+            public String describe() {
+                return "stub";
+            }
+        });
+        return client;
+    }
+
+    private static File writeFile(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,158 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestResultSpool extends TestCase {
+    private File directory;
+
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("spool", "");
+        directory.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        delete(directory);
+    }
+
+    public void testPendingResultsSurviveRestart() throws Exception {
+        File resultFile = writeFile(new File(directory.getParentFile(), directory.getName() + ".txt"), "result");
+        try {
+            ResultSpool spool = new ResultSpool(directory);
+            spool.open();
+            ResultSpool.Entry first = spool.add("first", new Client.TaskResult("1", 0, null, "output"), null);
+            spool.add("second", new Client.TaskResult("2", 1, Arrays.asList(resultFile), "failed"), null);
+            spool.acknowledge(first.getId());
+            spool.close();
+            // the spool keeps its own copy of the result files
+            assertTrue(resultFile.delete());
+
+            ResultSpool reopened = new ResultSpool(directory);
+            reopened.open();
+            List<ResultSpool.Entry> entries = reopened.takeForReplay();
+            assertEquals(1, entries.size());
+            ResultSpool.Entry entry = entries.get(0);
+            assertEquals("second", entry.getTaskName());
+            Client.TaskResult result = entry.getResult();
+            assertEquals("2", result.getInstanceId());
+            assertEquals(1, result.getExitCode());
+            assertEquals("failed", result.getOutput());
+            assertEquals(1, result.getFiles().size());
+            assertEquals(6, result.getFiles().get(0).length());
+            reopened.close();
+        } finally {
+            resultFile.delete();
+        }
+    }
+
+    public void testReplacedResultFileIsKept() throws Exception {
+        File resultFile = writeFile(new File(directory.getParentFile(), directory.getName() + ".txt"), "result");
+        try {
+            ResultSpool spool = new ResultSpool(directory);
+            spool.open();
+            ResultSpool.Entry entry = spool.add("task", new Client.TaskResult("1", 0, Arrays.asList(resultFile), "output"), null);
+            File spooled = entry.getResult().getFiles().get(0);
+            assertEquals(resultFile.getName(), spooled.getName());
+            assertTrue(spooled.getAbsolutePath().startsWith(directory.getAbsolutePath()));
+
+            // the next test deletes the results of the previous one and writes its own
+            assertTrue(resultFile.delete());
+            writeFile(resultFile, "next result");
+            assertEquals(6, spooled.length());
+            assertTrue(spool.findChangedFiles(entry).isEmpty());
+
+            spool.acknowledge(entry.getId());
+            assertFalse(spooled.exists());
+            assertTrue(resultFile.exists());
+            spool.close();
+        } finally {
+            resultFile.delete();
+        }
+    }
+
+    public void testRewrittenResultFileIsReported() throws Exception {
+        File resultFile = writeFile(new File(directory.getParentFile(), directory.getName() + ".txt"), "result");
+        try {
+            ResultSpool spool = new ResultSpool(directory);
+            spool.open();
+            ResultSpool.Entry entry = spool.add("task", new Client.TaskResult("1", 0, Arrays.asList(resultFile), "output"), null);
+            // rewritten in place, a hard link shares the new content
+            writeFile(resultFile, "next result");
+            File spooled = entry.getResult().getFiles().get(0);
+            if (spooled.length() != 6)
+                assertEquals(Arrays.asList(spooled), spool.findChangedFiles(entry));
+            spool.close();
+        } finally {
+            resultFile.delete();
+        }
+    }
+
+    public void testChunkedUploadsStayReferences() throws Exception {
+        File resultFile = writeFile(new File(directory.getParentFile(), directory.getName() + ".txt"), "result");
+        try {
+            Client client = new Client("http://localhost", "key", "1", "", "", "", "", "test");
+            client.setChunkedUpload(1, 1024, null);
+            ResultSpool spool = new ResultSpool(directory);
+            spool.open();
+            ResultSpool.Entry entry = spool.add("task", new Client.TaskResult("1", 0, Arrays.asList(resultFile), "output"), client);
+            assertEquals(resultFile, entry.getResult().getFiles().get(0));
+            spool.close();
+
+            ResultSpool reopened = new ResultSpool(directory);
+            reopened.open();
+            entry = reopened.takeForReplay().get(0);
+            assertEquals(resultFile.getAbsoluteFile(), entry.getResult().getFiles().get(0));
+            writeFile(resultFile, "next result");
+            assertEquals(Arrays.asList(resultFile.getAbsoluteFile()), reopened.findChangedFiles(entry));
+            reopened.close();
+        } finally {
+            resultFile.delete();
+        }
+    }
+
+    public void testReplayTakesEntriesOnce() throws Exception {
+        ResultSpool spool = new ResultSpool(directory);
+        spool.open();
+        ResultSpool.Entry entry = spool.add("task", new Client.TaskResult("1", 0, null, "output"), null);
+        // being uploaded right after it was added
+        assertTrue(spool.takeForReplay().isEmpty());
+        spool.release(entry.getId());
+        assertEquals(1, spool.takeForReplay().size());
+        assertTrue(spool.takeForReplay().isEmpty());
+        spool.close();
+    }
+
+    public void testCompactionDropsAcknowledgedRecords() throws Exception {
+        ResultSpool spool = new ResultSpool(directory);
+        spool.open();
+        for (int i = 0; i < 5; ++i) {
+            spool.acknowledge(spool.add("task", new Client.TaskResult(String.valueOf(i), 0, null, "output"), null).getId());
+        }
+        spool.close();
+        assertEquals(0, new File(directory, "journal.log").length());
+    }
+
+    private static File writeFile(File file, String content) throws IOException {
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
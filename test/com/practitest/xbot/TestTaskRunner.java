@@ -6,10 +6,15 @@ package com.practitest.xbot;
 import com.practitest.api.Client;
 import junit.framework.TestCase;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
+import java.util.Arrays;
+import java.util.List;
 
 public class TestTaskRunner extends TestCase {
     private static String DUMMY_SCRIPT = new File("./etc/dummyTask10.sh").getAbsolutePath();
+    private static String DUMMY_BATCH_SCRIPT = new File("./etc/dummyBatch.sh").getAbsolutePath();
     public void testRunTimeout() throws Exception {
         Client.Task task = new Client.Task("dummy", "dummy", DUMMY_SCRIPT, "etc", 2, 2);
         Main.TaskRunner taskRunner = new DummyMain().createTaskRunner(task);
@@ -29,6 +34,46 @@ public class TestTaskRunner extends TestCase {
         assertEquals(0, taskRunner.getExitCode());
     }
 
+    public void testRunBatch() throws Exception {
+        File results = File.createTempFile("batch", "");
+        results.delete();
+        try {
+            Client.Task first = new Client.Task("101", "first", DUMMY_BATCH_SCRIPT, results.getPath(), 2, 12);
+            Client.Task second = new Client.Task("102", "second", DUMMY_BATCH_SCRIPT, results.getPath(), 2, 7);
+            Main.TaskRunner taskRunner = new DummyMain().createTaskRunner(first, Arrays.asList(first, second));
+            Thread taskRunnerThread = new Thread(taskRunner);
+            taskRunnerThread.start();
+            taskRunnerThread.join();
+            assertFalse("Timed out", taskRunner.isTimedOut());
+
+            // bad lines are skipped, an instance without an exit code failed
+            assertEquals(3, taskRunner.getExitCode(first));
+            assertEquals(-1, taskRunner.getExitCode(second));
+
+            // each instance has its own result directory
+            for (Client.Task task : Arrays.asList(first, second)) {
+                File directory = new File(results, task.getInstanceId());
+                List<File> files = taskRunner.getResultFiles(task);
+                assertEquals(1, files.size());
+                assertEquals(new File(directory, "manifest.txt").getAbsoluteFile(), files.get(0).getAbsoluteFile());
+                BufferedReader reader = new BufferedReader(new FileReader(files.get(0)));
+                try {
+                    assertEquals(task.getInstanceId() + "\t" + directory.getAbsolutePath() + "\t" +
+                            task.getTimeoutInSeconds(), reader.readLine());
+                } finally {
+                    reader.close();
+                }
+            }
+            assertTrue(taskRunner.getOutput().contains("ran the batch"));
+        } finally {
+            for (String instanceId : new String[]{"101", "102"}) {
+                new File(new File(results, instanceId), "manifest.txt").delete();
+                new File(results, instanceId).delete();
+            }
+            results.delete();
+        }
+    }
+
     private static class DummyMain extends Main {
         public DummyMain() throws Exception {
             super(-1, true);
@@ -37,5 +82,9 @@ public class TestTaskRunner extends TestCase {
         public TaskRunner createTaskRunner(Client.Task task) {
             return new TaskRunner(task);
         }
+
+        public TaskRunner createTaskRunner(Client.Task task, List<Client.Task> batch) {
+            return new TaskRunner(task, batch);
+        }
     }
 }
\ No newline at end of file
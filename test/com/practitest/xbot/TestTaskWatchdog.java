@@ -0,0 +1,30 @@
+package com.practitest.xbot;
+
+import junit.framework.TestCase;
+
+public class TestTaskWatchdog extends TestCase {
+    public void testTimeoutTerminatesProcessTree() throws Exception {
+        TaskWatchdog watchdog = new TaskWatchdog();
+        // the shell ignores SIGTERM, so it has to be killed after the grace period
+        Process process = new ProcessBuilder("/bin/sh", "-c", "trap '' TERM; sleep 30 & sleep 30; wait").start();
+        TaskWatchdog.Watch watch = watchdog.watch(process, "dummy", 500, 1000);
+        process.waitFor();
+        assertTrue("Not timed out", watch.isTimedOut());
+        long killMillis = watch.awaitKill();
+        assertTrue("Processes survived", killMillis >= 0);
+        assertTrue("Killed before the grace period", killMillis >= 1000);
+        assertEquals(3, watch.getNumOfProcesses());
+        watchdog.shutdown();
+    }
+
+    public void testCancelledWatchDoesNotTimeOut() throws Exception {
+        TaskWatchdog watchdog = new TaskWatchdog();
+        Process process = new ProcessBuilder("/bin/sh", "-c", "exit 3").start();
+        TaskWatchdog.Watch watch = watchdog.watch(process, "dummy", 500, 1000);
+        assertEquals(3, process.waitFor());
+        watch.cancel();
+        Thread.sleep(1000);
+        assertFalse("Timed out", watch.isTimedOut());
+        watchdog.shutdown();
+    }
+}
@@ -0,0 +1,85 @@
+package com.practitest.xbot;
+
+import com.practitest.api.Client;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+public class TestWorkerPool extends TestCase {
+    private static String DUMMY_WORKER = new File("./etc/dummyWorker.sh").getAbsolutePath();
+
+    private TaskWatchdog watchdog;
+    private WorkerPool pool;
+
+    protected void setUp() throws Exception {
+        watchdog = new TaskWatchdog();
+        pool = new WorkerPool(Pattern.compile(".*dummyWorker.sh"), 2, 60000, watchdog);
+    }
+
+    protected void tearDown() throws Exception {
+        pool.shutdown();
+        watchdog.shutdown();
+    }
+
+    public void testWorkerIsReusedUntilMaxUses() throws Exception {
+        WorkerPool.Worker first = acquire();
+        assertEquals("running 1\n", run(first, "1"));
+        assertEquals(7, first.getExitCode());
+        pool.release(first);
+        assertEquals(1, pool.getNumOfIdleWorkers());
+
+        WorkerPool.Worker second = acquire();
+        assertSame(first, second);
+        assertEquals("running 2\n", run(second, "2"));
+        pool.release(second);
+        // recycled after two tests
+        assertEquals(0, pool.getNumOfIdleWorkers());
+        assertNotSame(first, acquire());
+    }
+
+    public void testMarkerAfterOutputWithoutNewline() throws Exception {
+        WorkerPool.Worker worker = acquire();
+        assertEquals("partial output", run(worker, "partial"));
+        assertEquals(7, worker.getExitCode());
+        pool.release(worker);
+        assertEquals("running 1\n", run(acquire(), "1"));
+    }
+
+    public void testIdleWorkerIsStopped() throws Exception {
+        pool.shutdown();
+        pool = new WorkerPool(Pattern.compile(".*dummyWorker.sh"), 2, 100, watchdog);
+        WorkerPool.Worker worker = acquire();
+        run(worker, "1");
+        pool.release(worker);
+        assertEquals(1, pool.getNumOfIdleWorkers());
+
+        // checked every second at the least
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getNumOfIdleWorkers() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        assertEquals(0, pool.getNumOfIdleWorkers());
+        worker.getProcess().waitFor();
+        assertNotSame(worker, acquire());
+    }
+
+    public void testOtherCommandsRunAsProcesses() throws Exception {
+        assertNull(pool.acquire("/bin/echo hello", Arrays.asList("/bin/echo", "hello"), new File("/bin")));
+    }
+
+    private WorkerPool.Worker acquire() {
+        WorkerPool.Worker worker = pool.acquire(DUMMY_WORKER, Arrays.asList(DUMMY_WORKER), new File("etc"));
+        assertNotNull(worker);
+        return worker;
+    }
+
+    private static String run(WorkerPool.Worker worker, String instanceId) throws IOException {
+        InputStream output = worker.start(new Client.Task(instanceId, "dummy", DUMMY_WORKER, "etc", 0, 10));
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = output.read(buffer)) != -1) captured.write(buffer, 0, read);
+        return captured.toString("UTF-8");
+    }
+}